@@ -0,0 +1,148 @@
+package github.stephenflavin.archives;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Flow.Subscriber} which writes a stream of {@link ByteBuffer}s to an {@link AsynchronousFileChannel} with up to
+ * {@code maxInFlight} positional writes outstanding at once, so the device queue is kept full rather than waiting on each write in turn.
+ * The position of every buffer is the sum of the sizes of the buffers before it, so writes may complete in any order.
+ * <p>
+ * Demand is signalled one buffer at a time, {@code maxInFlight} on subscription and another as each write completes, so each in-flight
+ * write is a separate buffer, for a {@link github.stephenflavin.archives.tar.TaringPublisher} a header or a single chunk of a file's data.
+ * Buffers are consumed by the writes and must not be modified until the write covering them has completed. Upstream signals must be
+ * serialized, which may happen on the channel's completion handler threads. Each buffer is handed to the publisher's releaser, see
+ * {@link ReleasingSubscriber}, once its write completes.
+ */
+public class AsyncFileChannelSink implements ReleasingSubscriber {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private final AsynchronousFileChannel channel;
+    private final int maxInFlight;
+    private final CompletableFuture<Long> completion = new CompletableFuture<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private Flow.Subscription subscription;
+    private volatile Consumer<ByteBuffer> releaser = buffer -> {};
+    private long position;
+    private volatile boolean upstreamComplete;
+
+    public AsyncFileChannelSink(AsynchronousFileChannel channel) {
+        this(channel, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param channel     the channel to write to, starting at position 0, it is not closed by the sink.
+     * @param maxInFlight the maximum number of writes issued but not yet completed.
+     */
+    public AsyncFileChannelSink(AsynchronousFileChannel channel, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.channel = channel;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return completed with the number of bytes written once every buffer has been written, or exceptionally with the first failure.
+     */
+    public CompletableFuture<Long> completion() {
+        return completion;
+    }
+
+    @Override
+    public void releaseTo(Consumer<ByteBuffer> releaser) {
+        this.releaser = releaser;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        for (int i = 0; i < maxInFlight && !completion.isDone(); i++) {
+            request();
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (completion.isDone()) {
+            releaser.accept(item);
+            return;
+        }
+        var writePosition = position;
+        position += item.remaining();
+        inFlight.incrementAndGet();
+        write(item, writePosition);
+    }
+
+    private void write(ByteBuffer buffer, long writePosition) {
+        try {
+            // the attachment is the position this write starts at so partial writes can be continued from where they stopped
+            channel.write(buffer, writePosition, writePosition, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer written, Long attachment) {
+                    if (buffer.hasRemaining()) {
+                        write(buffer, attachment + written);
+                        return;
+                    }
+                    releaser.accept(buffer);
+                    writeCompleted();
+                }
+
+                @Override
+                public void failed(Throwable throwable, Long attachment) {
+                    releaser.accept(buffer);
+                    fail(throwable);
+                }
+            });
+        } catch (RuntimeException e) {
+            releaser.accept(buffer);
+            fail(e);
+        }
+    }
+
+    private void writeCompleted() {
+        if (inFlight.decrementAndGet() == 0 && upstreamComplete) {
+            completion.complete(position);
+        } else if (!upstreamComplete) {
+            request();
+        }
+    }
+
+    /**
+     * Requests the next buffer, failing the sink if the publisher throws rather than signalling {@link #onError(Throwable)}, since an
+     * exception thrown on a completion handler's thread would otherwise be lost and the sink would never complete.
+     */
+    private void request() {
+        try {
+            subscription.request(1);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        if (completion.completeExceptionally(throwable)) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamComplete = true;
+        if (inFlight.get() == 0) {
+            completion.complete(position);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package github.stephenflavin.archives;
+
+/**
+ * CRC-32 helpers complementing {@link java.util.zip.CRC32}, most notably combining the checksums of two adjacent regions without access to
+ * their data, which allows regions to be checksummed independently and in any order.
+ */
+public final class Crc32 {
+
+    private static final int POLYNOMIAL = 0xedb88320; // reflected CRC-32 polynomial
+
+    private Crc32() {
+    }
+
+    /**
+     * Equivalent to zlib's {@code crc32_combine}.
+     *
+     * @param crc1    the CRC-32 of the first region.
+     * @param crc2    the CRC-32 of the second region, which immediately follows the first.
+     * @param length2 the length of the second region in bytes.
+     * @return the CRC-32 of the two regions concatenated.
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        // even and odd power-of-two zeros operators
+        var even = new int[32];
+        var odd = new int[32];
+
+        // operator for one zero bit in odd
+        odd[0] = POLYNOMIAL;
+        var row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two zero bits in even, four in odd
+        square(even, odd);
+        square(odd, even);
+
+        // apply length2 zeros to crc1, the first squaring puts the operator for one zero byte (eight zero bits) in even
+        var crc = (int) crc1;
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+
+        return Integer.toUnsignedLong(crc ^ (int) crc2);
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
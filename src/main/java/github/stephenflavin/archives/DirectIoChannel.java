@@ -0,0 +1,114 @@
+package github.stephenflavin.archives;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * A {@link WritableByteChannel} which writes a file with {@link ExtendedOpenOption#DIRECT}, bypassing the page cache so writing very large
+ * files doesn't evict the rest of the host's working set. Direct I/O requires the buffer address, file position and length of every write
+ * to be multiples of the file system's block size, so writes are staged into a block aligned direct buffer which is written once full.
+ * <p>
+ * On {@link #close()} the unaligned tail is padded with zeros to a whole block, written, and the file is then truncated to the number of
+ * bytes actually written through a regular channel.
+ */
+public final class DirectIoChannel implements WritableByteChannel {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024; // 8m
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ByteBuffer staging;
+    private long written;
+    private boolean open = true;
+
+    private DirectIoChannel(Path path, FileChannel channel, int blockSize, int bufferSize) {
+        this.path = path;
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.staging = ByteBuffer.allocateDirect(bufferSize + blockSize).alignedSlice(blockSize);
+    }
+
+    public static DirectIoChannel open(Path path) throws IOException {
+        return open(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of bytes staged before each write, rounded down to a multiple of the file system's block size.
+     * @throws IOException if the file system does not support direct I/O.
+     */
+    public static DirectIoChannel open(Path path, int bufferSize) throws IOException {
+        var directory = path.toAbsolutePath().getParent();
+        var blockSize = Math.toIntExact(Files.getFileStore(directory).getBlockSize());
+        if (bufferSize < blockSize) {
+            throw new IllegalArgumentException("bufferSize must be at least the block size of " + blockSize + " bytes");
+        }
+        var channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING, ExtendedOpenOption.DIRECT);
+        return new DirectIoChannel(path, channel, blockSize, bufferSize - bufferSize % blockSize);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        var length = src.remaining();
+        while (src.hasRemaining()) {
+            var toCopy = Math.min(src.remaining(), staging.remaining());
+            staging.put(staging.position(), src, src.position(), toCopy);
+            staging.position(staging.position() + toCopy);
+            src.position(src.position() + toCopy);
+            if (!staging.hasRemaining()) {
+                flush();
+            }
+        }
+        return length;
+    }
+
+    private void flush() throws IOException {
+        staging.flip();
+        while (staging.hasRemaining()) {
+            written += channel.write(staging);
+        }
+        staging.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+
+        var length = written + staging.position();
+        try (channel) {
+            var remainder = staging.position() % blockSize;
+            if (remainder != 0) {
+                staging.put(ByteBuffer.allocate(blockSize - remainder));
+            }
+            flush();
+        }
+
+        if (written != length) {
+            try (var fc = FileChannel.open(path, WRITE)) {
+                fc.truncate(length);
+            }
+        }
+    }
+}
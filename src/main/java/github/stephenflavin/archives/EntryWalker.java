@@ -0,0 +1,113 @@
+package github.stephenflavin.archives;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Lazily expands the paths passed to an archive build into entries, shared by the tar and zip writers. Files are named by their file
+ * name, directories are walked depth first with each entry named relative to the directory's parent, e.g. {@code dir/}, {@code dir/sub/},
+ * {@code dir/sub/file}. Only one directory stream per level of the tree being walked is open at a time so memory use is independent of the
+ * number of files.
+ * <p>
+ * Entries within a walked directory which are neither regular files nor directories are skipped.
+ */
+public final class EntryWalker implements Iterator<EntryWalker.EntryPath>, Closeable {
+
+    private final Path[] paths;
+    private int index;
+    private Path root;
+    private String rootName;
+    private Stream<Path> walk;
+    private Iterator<Path> walkIterator;
+    private EntryPath next;
+
+    public EntryWalker(Path... paths) {
+        this.paths = paths;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (walkIterator != null && walkIterator.hasNext()) {
+                var path = walkIterator.next();
+                next = new EntryPath(path, entryName(path));
+            } else if (index < paths.length) {
+                closeWalk();
+                var path = paths[index++];
+                if (Files.isDirectory(path)) {
+                    openWalk(path);
+                } else {
+                    next = new EntryPath(path, path.getFileName().toString());
+                }
+            } else {
+                closeWalk();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public EntryPath next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var entryPath = next;
+        next = null;
+        return entryPath;
+    }
+
+    private void openWalk(Path directory) {
+        try {
+            root = directory;
+            rootName = directory.getFileName() == null ? "" : directory.getFileName().toString();
+            walk = Files.find(directory, Integer.MAX_VALUE, (p, attributes) -> attributes.isRegularFile() || attributes.isDirectory());
+            walkIterator = walk.iterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String entryName(Path path) {
+        var relativePath = root.relativize(path);
+        if (relativePath.toString().isEmpty()) {
+            return rootName;
+        }
+        var name = new StringBuilder(rootName);
+        for (Path part : relativePath) {
+            if (!name.isEmpty()) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    private void closeWalk() {
+        if (walk != null) {
+            walk.close();
+            walk = null;
+            walkIterator = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        index = paths.length;
+        next = null;
+        closeWalk();
+    }
+
+    /**
+     * @param path the file or directory on disk.
+     * @param name the entry's path within the archive.
+     */
+    public record EntryPath(Path path, String name) {
+    }
+}
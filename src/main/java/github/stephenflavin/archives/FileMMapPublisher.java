@@ -4,13 +4,20 @@ import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.file.StandardOpenOption.READ;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import jdk.nio.mapmode.ExtendedMapMode;
@@ -26,10 +33,34 @@ import jdk.nio.mapmode.ExtendedMapMode;
  *   elements requested by that Subscriber´s Subscription at all times.</li>
  *   <li>A Publisher MAY signal fewer onNext than requested and terminate the Subscription by calling onComplete or onError.</li>
  * </ol>
+ * <p>
+ * Mappings are normally only unmapped once the garbage collector finds the buffer unreachable, so large jobs can build up virtual memory
+ * and mappings (bounded by {@code vm.max_map_count} on Linux). Publishers created with {@code unmapOnRelease} instead allow each
+ * {@link FileChunk} to be unmapped as soon as its consumer is done with it by calling {@link FileChunk#release()}.
+ * <p>
+ * The chunk size adapts to the size of the file, a 64th of it rounded down to a power of two and bounded between {@value #MIN_CHUNK_SIZE}
+ * and {@value #MAX_CHUNK_SIZE} bytes, so large files are published in fewer, larger buffers. A fixed size can be set with the
+ * {@code mmapChunkSize} system property or {@code MMAP_CHUNK_SIZE} environment variable, it must be a multiple of 512 bytes up to 512MiB
+ * and is otherwise ignored.
+ * <p>
+ * With read-ahead enabled the chunks following the last one published are loaded into the page cache on a background thread, so the
+ * subscriber's first access to the next buffer doesn't wait on the disk. The number of chunks to read ahead is {@code 0}, disabled, unless
+ * passed to the constructor or set with the {@code mmapReadAheadChunks} system property or {@code MMAP_READ_AHEAD_CHUNKS} environment
+ * variable.
  */
 public class FileMMapPublisher implements Flow.Publisher<FileMMapPublisher.FileChunk> {
 
+    public static final int MIN_CHUNK_SIZE = 1024 * 256; // 256k
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024 * 8; // 8m
+
+    private static final int TARGET_CHUNKS_PER_FILE = 64;
+    private static final int CHUNK_SIZE_MULTIPLE = 512; // the tar block size
+    private static final int MAX_FIXED_CHUNK_SIZE = 512 * 1024 * 1024; // 512m
     private static final boolean USE_EXTENDED_MAP_MODE;
+    private static final int FIXED_CHUNK_SIZE;
+    private static final int DEFAULT_READ_AHEAD_CHUNKS;
+    private static final MethodHandle INVOKE_CLEANER;
+    private static ExecutorService readAheadExecutor = null;
 
     static {
         USE_EXTENDED_MAP_MODE = Stream.of(System.getProperty("useExtendedMapMode"), System.getenv("USE_EXTENDED_MAP_MODE"))
@@ -41,40 +72,173 @@ public class FileMMapPublisher implements Flow.Publisher<FileMMapPublisher.FileC
             System.getLogger(FileMMapPublisher.class.toString())
                 .log(java.lang.System.Logger.Level.INFO, "Use of jdk.nio.mapmode.ExtendedMapMode is enabled");
         }
+
+        // until the foreign memory api is final sun.misc.Unsafe is the only way to unmap a buffer without waiting for the GC
+        MethodHandle invokeCleaner = null;
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner = MethodHandles.lookup()
+                .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.getLogger(FileMMapPublisher.class.toString())
+                .log(java.lang.System.Logger.Level.WARNING, "Unable to unmap buffers eagerly, mappings will be released by the GC", e);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+
+        var fixedChunkSize = Stream.of(System.getProperty("mmapChunkSize"), System.getenv("MMAP_CHUNK_SIZE"))
+            .filter(Objects::nonNull)
+            .map(Integer::parseInt)
+            .findFirst()
+            .orElse(0);
+        // tar padding is derived from the size of the last chunk and a buffer must hold at least one chunk below the 2GB limit
+        if (fixedChunkSize != 0
+                && (fixedChunkSize < 0 || fixedChunkSize % CHUNK_SIZE_MULTIPLE != 0 || fixedChunkSize > MAX_FIXED_CHUNK_SIZE)) {
+            System.getLogger(FileMMapPublisher.class.toString())
+                .log(java.lang.System.Logger.Level.WARNING,
+                    "Ignoring mmapChunkSize {0,number,#}, it must be a positive multiple of {1,number,#} up to {2,number,#}",
+                    fixedChunkSize, CHUNK_SIZE_MULTIPLE, MAX_FIXED_CHUNK_SIZE);
+            fixedChunkSize = 0;
+        }
+        FIXED_CHUNK_SIZE = fixedChunkSize;
+        DEFAULT_READ_AHEAD_CHUNKS = Stream.of(System.getProperty("mmapReadAheadChunks"), System.getenv("MMAP_READ_AHEAD_CHUNKS"))
+            .filter(Objects::nonNull)
+            .map(Integer::parseInt)
+            .findFirst()
+            .orElse(0);
     }
 
     private final Path path;
+    private final boolean unmapOnRelease;
+    private final int readAheadChunks;
 
     public FileMMapPublisher(Path path) {
+        this(path, false);
+    }
+
+    /**
+     * @param path           the file to publish.
+     * @param unmapOnRelease whether {@link FileChunk#release()} unmaps the chunk's buffer, consumers must then release every chunk once
+     *                       they, and anything they passed the buffer to, no longer reference it since accessing an unmapped buffer crashes
+     *                       the JVM.
+     */
+    public FileMMapPublisher(Path path, boolean unmapOnRelease) {
+        this(path, unmapOnRelease, DEFAULT_READ_AHEAD_CHUNKS);
+    }
+
+    /**
+     * @param path            the file to publish.
+     * @param unmapOnRelease  see {@link #FileMMapPublisher(Path, boolean)}.
+     * @param readAheadChunks the number of chunks beyond the last one published to load into the page cache in the background, {@code 0}
+     *                        disables read-ahead.
+     */
+    public FileMMapPublisher(Path path, boolean unmapOnRelease, int readAheadChunks) {
+        if (readAheadChunks < 0) {
+            throw new IllegalArgumentException("readAheadChunks must not be negative");
+        }
         this.path = path;
+        this.unmapOnRelease = unmapOnRelease;
+        this.readAheadChunks = readAheadChunks;
     }
 
     @Override
     public void subscribe(Flow.Subscriber<? super FileChunk> subscriber) {
         try {
-            subscriber.onSubscribe(new MMapSubscription(subscriber, path));
+            subscriber.onSubscribe(new MMapSubscription(subscriber, path, unmapOnRelease, readAheadChunks));
         } catch (Throwable ex) {
             subscriber.onError(ex);
         }
     }
 
+    /**
+     * Maps a read-only region of the given channel, honouring the {@code useExtendedMapMode} setting used by this publisher.
+     *
+     * @param fc     the channel to map.
+     * @param offset the position in the file at which the mapped region starts.
+     * @param size   the size of the region, must not exceed {@link Integer#MAX_VALUE}.
+     */
+    public static MappedByteBuffer map(FileChannel fc, long offset, long size) throws IOException {
+        // todo experiment with ExtendedMapMode.READ_ONLY_SYNC
+        if (USE_EXTENDED_MAP_MODE) {
+            return fc.map(ExtendedMapMode.READ_ONLY_SYNC, offset, size);
+        }
+        return fc.map(READ_ONLY, offset, size);
+    }
+
+    /**
+     * Unmaps a buffer returned by {@link #map(FileChannel, long, long)} immediately rather than when it is garbage collected, the buffer
+     * and any slices or duplicates of it must not be accessed afterwards.
+     *
+     * @return {@code false} if eager unmapping isn't supported by the JVM, in which case the mapping is left to the GC.
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            return true;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes in a chunk of a file of the given size.
+     */
+    public static int chunkSize(long fileSize) {
+        if (FIXED_CHUNK_SIZE > 0) {
+            return FIXED_CHUNK_SIZE;
+        }
+        var chunkSize = Long.highestOneBit(Math.max(1, fileSize / TARGET_CHUNKS_PER_FILE));
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
+
+    private static synchronized ExecutorService readAheadExecutor() {
+        if (readAheadExecutor == null) {
+            var threadCount = new AtomicInteger();
+            readAheadExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                var thread = new Thread(r, "mmap-read-ahead-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return readAheadExecutor;
+    }
+
     private static class MMapSubscription implements Flow.Subscription {
-        private static final int OPTIMAL_READ_CHUNK_SIZE = 1024 * 256; // 256k
-        private static final long maxRequested = Long.MAX_VALUE / (1024 * 256);
 
         private final Flow.Subscriber<? super FileChunk> subscriber;
         private final FileChannel fc;
         private final long fileSize;
+        private final boolean unmapOnRelease;
+        private final int chunkSize;
+        private final long maxRequested;
+        private final long readAheadBytes;
         private long remaining;
+        private long readAheadOffset;
 
         private MMapSubscription(Flow.Subscriber<? super FileChunk> subscriber,
-                                 Path path) throws IOException {
+                                 Path path,
+                                 boolean unmapOnRelease,
+                                 int readAheadChunks) throws IOException {
             this.fc = FileChannel.open(path, READ);
+            this.unmapOnRelease = unmapOnRelease;
             this.subscriber = subscriber;
             this.fileSize = fc.size();
             this.remaining = fc.size();
+            this.chunkSize = chunkSize(fileSize);
+            this.maxRequested = Long.MAX_VALUE / chunkSize;
+            // a read-ahead window is loaded through a single mapping
+            this.readAheadBytes = Math.min((long) readAheadChunks * chunkSize, Integer.MAX_VALUE - chunkSize);
             if (fileSize == 0) {
                 subscriber.onComplete();
+            } else {
+                readAhead(0);
             }
         }
 
@@ -85,16 +249,18 @@ public class FileMMapPublisher implements Flow.Publisher<FileMMapPublisher.FileC
             }
             var currentOffset = fileSize - remaining;
             try {
-                var toRead = Math.min(Math.min(requested, maxRequested) * OPTIMAL_READ_CHUNK_SIZE, remaining);
+                var toRead = Math.min(Math.min(requested, maxRequested) * chunkSize, remaining);
                 remaining -= toRead;
 
-                // the last chunk which is < OPTIMAL_READ_CHUNK_SIZE will be published by the previous chunk
-                if (remaining < OPTIMAL_READ_CHUNK_SIZE) {
+                // the last chunk which is < chunkSize will be published by the previous chunk
+                if (remaining < chunkSize) {
                     toRead += remaining;
                     remaining = 0;
                 }
 
-                toBuffers(currentOffset, toRead).forEach(subscriber::onNext);
+                var fileChunks = toBuffers(currentOffset, toRead);
+                readAhead(currentOffset + toRead);
+                fileChunks.forEach(subscriber::onNext);
                 if (remaining == 0) {
                     subscriber.onComplete();
                     fc.close();
@@ -109,39 +275,47 @@ public class FileMMapPublisher implements Flow.Publisher<FileMMapPublisher.FileC
             }
         }
 
-        private Stream<FileChunk> toBuffers(long currentOffset, long bytesToRead) throws IOException {
-            // todo experiment with ExtendedMapMode.READ_ONLY_SYNC
-            if (bytesToRead < Integer.MAX_VALUE) {
-                return Stream.of(new FileChunk(Math.max(1, Math.floorDiv(bytesToRead, OPTIMAL_READ_CHUNK_SIZE)),
-                    mMap(currentOffset, bytesToRead)));
+        private List<FileChunk> toBuffers(long currentOffset, long bytesToRead) throws IOException {
+            // a whole number of chunks per buffer, with room for the final partial chunk to be folded into the last buffer
+            var maxBufferBytes = (long) (Integer.MAX_VALUE / chunkSize - 1) * chunkSize;
+            var fileChunks = new ArrayList<FileChunk>((int) Math.ceilDiv(bytesToRead, maxBufferBytes));
+            while (bytesToRead > 0) {
+                var bufferBytes = bytesToRead - maxBufferBytes < chunkSize ? bytesToRead : maxBufferBytes;
+                fileChunks.add(new FileChunk(Math.max(1, Math.floorDiv(bufferBytes, chunkSize)),
+                    mMap(currentOffset, bufferBytes), unmapOnRelease));
+                currentOffset += bufferBytes;
+                bytesToRead -= bufferBytes;
             }
+            return fileChunks;
+        }
 
-            var finalOffset = currentOffset + bytesToRead;
-            var chunks = Math.floorDiv(bytesToRead, OPTIMAL_READ_CHUNK_SIZE);
-            var numBuffers = Math.ceilDiv(bytesToRead, Integer.MAX_VALUE);
-            var chunksPerBuffer = Math.floorDiv(chunks, numBuffers);
-            var bytesPerBuffer = chunksPerBuffer * OPTIMAL_READ_CHUNK_SIZE;
-
-            var fileChunks = new ArrayList<FileChunk>((int) numBuffers);
-            while (currentOffset != finalOffset) {
-                chunks -= chunksPerBuffer;
-                if (chunks < chunksPerBuffer) {
-                    bytesPerBuffer = finalOffset - currentOffset;
-                    chunksPerBuffer += chunks;
-                    chunks = 0;
-                }
-                fileChunks.add(new FileChunk(chunksPerBuffer,
-                    mMap(currentOffset, bytesPerBuffer)));
-                currentOffset += bytesPerBuffer;
+        /**
+         * Loads up to {@code readAheadBytes} following {@code offset} into the page cache on a background thread, skipping anything
+         * already scheduled. Read-ahead is only a hint so failures, e.g. the channel being closed once the file is published, are ignored.
+         */
+        private void readAhead(long offset) {
+            if (readAheadBytes == 0) {
+                return;
+            }
+            var start = Math.max(offset, readAheadOffset);
+            var end = Math.min(fileSize, offset + readAheadBytes);
+            if (start >= end) {
+                return;
             }
-            return fileChunks.stream();
+            readAheadOffset = end;
+            readAheadExecutor().execute(() -> {
+                try {
+                    var window = map(fc, start, end - start);
+                    window.load();
+                    unmap(window);
+                } catch (IOException | RuntimeException e) {
+                    // ignored
+                }
+            });
         }
 
         private MappedByteBuffer mMap(long currentOffset, long bytesToRead) throws IOException {
-            if (USE_EXTENDED_MAP_MODE) {
-                return fc.map(ExtendedMapMode.READ_ONLY_SYNC, currentOffset, bytesToRead);
-            }
-            return fc.map(READ_ONLY, currentOffset, bytesToRead);
+            return map(fc, currentOffset, bytesToRead);
         }
 
         @Override
@@ -155,6 +329,24 @@ public class FileMMapPublisher implements Flow.Publisher<FileMMapPublisher.FileC
         }
     }
 
-    public record FileChunk(long numChunks, ByteBuffer buffer) {
+    /**
+     * @param numChunks      the number of requested chunks the buffer accounts for.
+     * @param buffer         the mapped region of the file.
+     * @param unmapOnRelease whether {@link #release()} unmaps the buffer.
+     */
+    public record FileChunk(long numChunks, ByteBuffer buffer, boolean unmapOnRelease) {
+
+        public FileChunk(long numChunks, ByteBuffer buffer) {
+            this(numChunks, buffer, false);
+        }
+
+        /**
+         * Signals the consumer is done with the buffer, unmapping it if the publisher was created with {@code unmapOnRelease}.
+         */
+        public void release() {
+            if (unmapOnRelease && buffer instanceof MappedByteBuffer mappedByteBuffer) {
+                unmap(mappedByteBuffer);
+            }
+        }
     }
 }
@@ -0,0 +1,176 @@
+package github.stephenflavin.archives;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * A {@link Flow.Processor} which collects consecutive {@link ByteBuffer}s into batches, so they can be written with a single
+ * {@link GatheringByteChannel#write(ByteBuffer[])} call. A batch is published once it holds {@code maxBuffers} buffers or at least
+ * {@code maxBytes} bytes, and any partial batch is published when the upstream completes.
+ * <p>
+ * A request for {@code n} batches is forwarded upstream as a request for {@code n * maxBuffers} buffers, batches which fill before the
+ * downstream has demand for them are held until it requests more.
+ */
+public class GatheringBatchProcessor implements Flow.Processor<ByteBuffer, ByteBuffer[]> {
+
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024; // 1m
+
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+    private final int maxBuffers;
+    private final long maxBytes;
+    private final List<ByteBuffer> batch;
+    private final ArrayDeque<ByteBuffer[]> pendingBatches = new ArrayDeque<>();
+
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super ByteBuffer[]> downstream;
+    private long batchBytes;
+    private long demand;
+    private long unforwardedRequests;
+    private boolean upstreamComplete;
+    private boolean done;
+
+    public GatheringBatchProcessor() {
+        this(DEFAULT_MAX_BUFFERS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBuffers the maximum number of buffers in a batch, bounded by the channel's {@code IOV_MAX} (1024 on Linux).
+     * @param maxBytes   the number of bytes after which a batch is published, even if it holds fewer than {@code maxBuffers} buffers.
+     */
+    public GatheringBatchProcessor(int maxBuffers, long maxBytes) {
+        if (maxBuffers < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("maxBuffers and maxBytes must be positive");
+        }
+        this.maxBuffers = maxBuffers;
+        this.maxBytes = maxBytes;
+        this.batch = new ArrayList<>(maxBuffers);
+    }
+
+    @Override
+    public synchronized void subscribe(Flow.Subscriber<? super ByteBuffer[]> subscriber) {
+        if (downstream != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("GatheringBatchProcessor only supports a single subscriber"));
+            return;
+        }
+        downstream = subscriber;
+        subscriber.onSubscribe(new BatchSubscription());
+    }
+
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        upstream = subscription;
+        if (unforwardedRequests > 0) {
+            var n = unforwardedRequests;
+            unforwardedRequests = 0;
+            upstream.request(n);
+        }
+    }
+
+    @Override
+    public synchronized void onNext(ByteBuffer item) {
+        if (!item.hasRemaining()) {
+            return;
+        }
+        batch.add(item);
+        batchBytes += item.remaining();
+        if (batch.size() >= maxBuffers || batchBytes >= maxBytes) {
+            pendingBatches.add(batch.toArray(EMPTY));
+            batch.clear();
+            batchBytes = 0;
+            drain();
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        done = true;
+        batch.clear();
+        pendingBatches.clear();
+        if (downstream != null) {
+            downstream.onError(throwable);
+        }
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        upstreamComplete = true;
+        if (!batch.isEmpty()) {
+            pendingBatches.add(batch.toArray(EMPTY));
+            batch.clear();
+            batchBytes = 0;
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (downstream == null) {
+            return;
+        }
+        while (demand > 0 && !pendingBatches.isEmpty()) {
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            downstream.onNext(pendingBatches.poll());
+        }
+        if (upstreamComplete && pendingBatches.isEmpty() && !done) {
+            done = true;
+            downstream.onComplete();
+        }
+    }
+
+    private class BatchSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            synchronized (GatheringBatchProcessor.this) {
+                if (n <= 0) {
+                    downstream.onError(new IllegalArgumentException("§3.9: non-positive requests are not allowed!"));
+                    return;
+                }
+                demand = saturatedAdd(demand, n);
+                drain();
+                if (done || upstreamComplete) {
+                    return;
+                }
+                var toRequest = n > Long.MAX_VALUE / maxBuffers ? Long.MAX_VALUE : n * maxBuffers;
+                if (upstream == null) {
+                    unforwardedRequests = saturatedAdd(unforwardedRequests, toRequest);
+                } else {
+                    upstream.request(toRequest);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (GatheringBatchProcessor.this) {
+                done = true;
+                batch.clear();
+                pendingBatches.clear();
+                if (upstream != null) {
+                    upstream.cancel();
+                }
+            }
+        }
+
+        private static long saturatedAdd(long a, long b) {
+            var sum = a + b;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package github.stephenflavin.archives;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Flow.Processor} which shares a single stream of {@link ByteBuffer}s with a fixed number of subscribers, e.g. to write the same
+ * archive to local disk and a backup target while every input file is only read once. Subscribers receive the same underlying memory, each
+ * through its own {@link ByteBuffer#duplicate()} so positions and limits are independent, buffers are never copied.
+ * <p>
+ * The upstream is only subscribed to, and requested from, once all {@code subscribers} have subscribed so none miss the start of the
+ * stream. Buffers are retained until every subscriber has received them and at most {@code maxLag} buffers are retained or requested, so
+ * upstream demand follows the slowest subscriber. Demand is forwarded upstream one element at a time since a
+ * {@link github.stephenflavin.archives.tar.TaringPublisher} may publish several chunks of a file in a single buffer.
+ * <p>
+ * Each subscriber is signalled from tasks on an {@link Executor} so a slow subscriber only holds up the others once it falls
+ * {@code maxLag} buffers behind, and a subscriber which throws from {@code onNext} is removed and sent {@code onError} so it no longer
+ * holds back the others. Buffers must not be modified or reused by the upstream after they are published, so a
+ * {@link github.stephenflavin.archives.tar.TaringPublisher} must not release buffers after {@code onNext}.
+ */
+public class MulticastProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    public static final int DEFAULT_MAX_LAG = 64;
+
+    private static ExecutorService executorService = null;
+
+    private final int subscribers;
+    private final int maxLag;
+    private final Executor executor;
+    private final List<MulticastSubscription> subscriptions = new ArrayList<>();
+    // buffers head (inclusive) to tail (exclusive) of the stream, there are never more than maxLag retained and requested
+    private final ByteBuffer[] window;
+
+    private Flow.Subscription upstream;
+    private boolean connected;
+    private long head;
+    private long tail;
+    private long outstanding;
+    private boolean upstreamComplete;
+    private Throwable error;
+
+    public MulticastProcessor(int subscribers) {
+        this(subscribers, DEFAULT_MAX_LAG, executor());
+    }
+
+    /**
+     * @param subscribers the number of subscribers to wait for before requesting from the upstream.
+     * @param maxLag      the maximum number of buffers the fastest subscriber may be ahead of the slowest.
+     * @param executor    signals subscribers, each subscriber is only signalled by one task at a time.
+     */
+    public MulticastProcessor(int subscribers, int maxLag, Executor executor) {
+        if (subscribers < 1 || maxLag < 1) {
+            throw new IllegalArgumentException("subscribers and maxLag must be positive");
+        }
+        this.subscribers = subscribers;
+        this.maxLag = maxLag;
+        this.executor = executor;
+        this.window = new ByteBuffer[maxLag];
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        var subscription = new MulticastSubscription(subscriber);
+        synchronized (this) {
+            if (subscriptions.size() == subscribers) {
+                subscription = null;
+            } else {
+                subscriptions.add(subscription);
+            }
+        }
+
+        if (subscription == null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("MulticastProcessor only supports " + subscribers + " subscribers"));
+            return;
+        }
+        subscriber.onSubscribe(subscription);
+        requestUpstream();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            upstream = subscription;
+        }
+        requestUpstream();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        synchronized (this) {
+            window[(int) (tail++ % maxLag)] = item;
+            outstanding--;
+        }
+        signalAll();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            error = throwable;
+            upstreamComplete = true;
+        }
+        signalAll();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamComplete = true;
+        }
+        signalAll();
+    }
+
+    private void signalAll() {
+        final List<MulticastSubscription> toSignal;
+        synchronized (this) {
+            toSignal = List.copyOf(subscriptions);
+        }
+        toSignal.forEach(MulticastSubscription::signal);
+    }
+
+    /**
+     * Drops buffers every subscriber has received and tops up upstream demand to {@code maxLag}. Requests are made outside the lock as
+     * the upstream may publish synchronously.
+     */
+    private void requestUpstream() {
+        long toRequest;
+        Flow.Subscription subscription;
+        synchronized (this) {
+            if (!connected && (upstream == null || subscriptions.size() < subscribers)) {
+                return;
+            }
+            connected = true;
+
+            if (subscriptions.isEmpty()) {
+                // every subscriber has cancelled
+                if (!upstreamComplete) {
+                    upstreamComplete = true;
+                    upstream.cancel();
+                }
+                while (head < tail) {
+                    window[(int) (head++ % maxLag)] = null;
+                }
+                return;
+            }
+
+            var slowest = Long.MAX_VALUE;
+            for (var s : subscriptions) {
+                slowest = Math.min(slowest, s.next);
+            }
+            while (head < slowest && head < tail) {
+                window[(int) (head++ % maxLag)] = null;
+            }
+
+            if (upstreamComplete) {
+                return;
+            }
+            toRequest = maxLag - (tail - head) - outstanding;
+            if (toRequest <= 0) {
+                return;
+            }
+            outstanding += toRequest;
+            subscription = upstream;
+        }
+
+        for (long i = 0; i < toRequest; i++) {
+            subscription.request(1);
+        }
+    }
+
+    private synchronized ByteBuffer get(long index) {
+        if (index < head || index >= tail) {
+            return null;
+        }
+        return window[(int) (index % maxLag)];
+    }
+
+    private static synchronized Executor executor() {
+        if (executorService == null) {
+            var threadCount = new AtomicInteger();
+            executorService = Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "multicast-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    private class MulticastSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean done;
+        // the index of the next buffer to publish, guarded by the processor
+        private long next;
+
+        private MulticastSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("§3.9: non-positive requests are not allowed!");
+            } else {
+                demand.getAndUpdate(current -> {
+                    var sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        private void signal() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            var missed = 1;
+            do {
+                while (!done && step()) {
+                    // keep publishing until demand or buffers are exhausted
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private boolean step() {
+            if (cancelled || invalidRequest != null) {
+                remove();
+                if (!cancelled) {
+                    subscriber.onError(invalidRequest);
+                }
+                return false;
+            }
+
+            final long index;
+            synchronized (MulticastProcessor.this) {
+                index = next;
+            }
+            var buffer = demand.get() > 0 ? get(index) : null;
+            if (buffer == null) {
+                final boolean complete;
+                final Throwable failure;
+                synchronized (MulticastProcessor.this) {
+                    complete = upstreamComplete && index >= tail;
+                    failure = error;
+                }
+                if (complete || failure != null) {
+                    remove();
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+                return false;
+            }
+
+            demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+            synchronized (MulticastProcessor.this) {
+                next = index + 1;
+            }
+            try {
+                subscriber.onNext(buffer.duplicate());
+            } catch (RuntimeException e) {
+                // §2.13, the subscriber is considered cancelled so it no longer holds back the others
+                remove();
+                subscriber.onError(e);
+                return false;
+            }
+            requestUpstream();
+            return true;
+        }
+
+        private void remove() {
+            done = true;
+            synchronized (MulticastProcessor.this) {
+                subscriptions.remove(this);
+            }
+            requestUpstream();
+        }
+    }
+}
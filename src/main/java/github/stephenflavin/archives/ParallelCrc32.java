@@ -0,0 +1,167 @@
+package github.stephenflavin.archives;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC-32 of a stream of buffers, e.g. the {@link FileMMapPublisher.FileChunk}s of a mapped file, using several threads. Each
+ * buffer is split into regions of up to {@code regionSize} bytes which are checksummed concurrently with {@link CRC32}, which the JIT
+ * compiles to the CPU's carry-less multiply or CRC instructions, and the partial values are merged in stream order with
+ * {@link Crc32#combine(long, long, long)}. Since {@link #update(ByteBuffer)} returns without waiting, a buffer can be written while it and
+ * the buffers after it are checksummed.
+ * <p>
+ * Buffers must not be modified or unmapped until the future returned by {@link #update(ByteBuffer)} completes. A {@code ParallelCrc32} is
+ * updated from one thread at a time, in stream order.
+ */
+public final class ParallelCrc32 {
+
+    public static final int DEFAULT_REGION_SIZE = 4 * 1024 * 1024; // 4m
+
+    // smaller buffers are checksummed by the calling thread, as handing them off costs more than checksumming them
+    private static final int MIN_PARALLEL_SIZE = 64 * 1024; // 64k
+    private static ExecutorService executorService = null;
+
+    private final int regionSize;
+    private final Executor executor;
+    private final ArrayDeque<Region> regions = new ArrayDeque<>();
+    private long crc;
+
+    public ParallelCrc32() {
+        this(DEFAULT_REGION_SIZE, executor());
+    }
+
+    /**
+     * @param regionSize the number of bytes checksummed by a single task.
+     * @param executor   runs the checksum tasks.
+     */
+    public ParallelCrc32(int regionSize, Executor executor) {
+        if (regionSize < MIN_PARALLEL_SIZE) {
+            throw new IllegalArgumentException("regionSize must be at least " + MIN_PARALLEL_SIZE);
+        }
+        this.regionSize = regionSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Checksums the buffer's remaining bytes, without changing its position.
+     *
+     * @return completed once the buffer is no longer read.
+     */
+    public CompletableFuture<Void> update(ByteBuffer buffer) {
+        fold();
+        var src = buffer.duplicate();
+        if (src.remaining() < MIN_PARALLEL_SIZE) {
+            var checksum = new CRC32();
+            var length = src.remaining();
+            checksum.update(src);
+            regions.add(new Region(CompletableFuture.completedFuture(checksum.getValue()), length));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var start = regions.size();
+        while (src.hasRemaining()) {
+            var region = src.slice(src.position(), Math.min(src.remaining(), regionSize));
+            src.position(src.position() + region.remaining());
+            var length = region.remaining();
+            regions.add(new Region(CompletableFuture.supplyAsync(() -> {
+                var checksum = new CRC32();
+                checksum.update(region);
+                return checksum.getValue();
+            }, executor), length));
+        }
+        return CompletableFuture.allOf(regions.stream()
+                .skip(start)
+                .map(Region::crc)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @return the CRC-32 of every buffer passed to {@link #update(ByteBuffer)} so far, once they have all been checksummed.
+     */
+    public CompletableFuture<Long> value() {
+        fold();
+        var pending = regions.toArray(Region[]::new);
+        var folded = crc;
+        return CompletableFuture.allOf(Arrays.stream(pending).map(Region::crc).toArray(CompletableFuture[]::new))
+                .thenApply(v -> {
+                    var value = folded;
+                    for (Region region : pending) {
+                        value = Crc32.combine(value, region.crc().join(), region.length());
+                    }
+                    return value;
+                });
+    }
+
+    /**
+     * Combines checksummed regions at the head of the stream so only those still being checksummed are retained.
+     */
+    private void fold() {
+        while (!regions.isEmpty() && regions.peek().crc().isDone() && !regions.peek().crc().isCompletedExceptionally()) {
+            var region = regions.poll();
+            crc = Crc32.combine(crc, region.crc().join(), region.length());
+        }
+    }
+
+    /**
+     * Checksums a file, mapping it with a {@link FileMMapPublisher} and unmapping each chunk once it has been checksummed.
+     */
+    public static long checksum(Path path) throws IOException {
+        var parallelCrc32 = new ParallelCrc32();
+        var failure = new IOException[1];
+        // chunks are published synchronously
+        new FileMMapPublisher(path, true).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(FileMMapPublisher.FileChunk chunk) {
+                parallelCrc32.update(chunk.buffer()).thenRun(chunk::release);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                failure[0] = throwable instanceof IOException e ? e : new IOException(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        try {
+            return parallelCrc32.value().join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to checksum " + path, e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executorService == null) {
+            var threadCount = new AtomicInteger();
+            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                var thread = new Thread(r, "crc32-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    private record Region(CompletableFuture<Long> crc, long length) {
+    }
+}
@@ -0,0 +1,19 @@
+package github.stephenflavin.archives;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Flow.Subscriber} of {@link ByteBuffer}s which signals once it has finished with each buffer, e.g. when an asynchronous write of
+ * it completes, so publishers can reuse the buffers they allocate rather than allocating more for every element. Publishers which pool
+ * buffers register a releaser before calling {@link #onSubscribe(Flow.Subscription)}, others ignore the signal.
+ */
+public interface ReleasingSubscriber extends Flow.Subscriber<ByteBuffer> {
+
+    /**
+     * @param releaser called, from any thread, with each buffer passed to {@link #onNext(Object)} once the subscriber no longer
+     *                 references it, including buffers which are dropped after a failure.
+     */
+    void releaseTo(Consumer<ByteBuffer> releaser);
+}
@@ -0,0 +1,243 @@
+package github.stephenflavin.archives.gzip;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+
+/**
+ * The member boundaries of a gzip file written by a {@link ParallelGzipProcessor#seekable(Consumer) seekable} processor, allowing any range
+ * of the uncompressed stream to be read by inflating only the members which cover it.
+ * <p>
+ * It is persisted as a compact binary sidecar file, or a section of one:
+ * <pre>
+ * int   magic ("ZCGI")
+ * int   version
+ * int   block count
+ * blocks {
+ *   long  compressed offset
+ *   long  uncompressed offset
+ *   int   compressed size
+ *   int   uncompressed size
+ * }
+ * </pre>
+ */
+public final class GzipBlockIndex {
+
+    private static final int MAGIC = 0x5A434749; // ZCGI
+    private static final int VERSION = 1;
+    private static final int BLOCK_ENTRY_SIZE = Long.BYTES * 2 + Integer.BYTES * 2;
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final List<Block> blocks;
+
+    private GzipBlockIndex(List<Block> blocks) {
+        this.blocks = blocks;
+    }
+
+    /**
+     * Reads an index previously written with {@link #write(Path)}.
+     */
+    public static GzipBlockIndex read(Path indexPath) throws IOException {
+        try (var fc = FileChannel.open(indexPath, READ)) {
+            return readFrom(FileMMapPublisher.map(fc, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Reads an index from the buffer's position, leaving the position after the index.
+     */
+    public static GzipBlockIndex readFrom(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES * 3 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a gzip block index");
+        }
+        var version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported gzip block index version " + version);
+        }
+
+        var count = buffer.getInt();
+        var blocks = new ArrayList<Block>(count);
+        for (int i = 0; i < count; i++) {
+            blocks.add(new Block(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt()));
+        }
+        return new GzipBlockIndex(List.copyOf(blocks));
+    }
+
+    public void write(Path indexPath) throws IOException {
+        var buffer = ByteBuffer.allocateDirect(encodedSize());
+        writeTo(buffer);
+        try (var fc = FileChannel.open(indexPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(ByteBuffer)} will write.
+     */
+    public int encodedSize() {
+        return Integer.BYTES * 3 + blocks.size() * BLOCK_ENTRY_SIZE;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(blocks.size());
+        for (var block : blocks) {
+            buffer.putLong(block.compressedOffset())
+                    .putLong(block.uncompressedOffset())
+                    .putInt(block.compressedSize())
+                    .putInt(block.uncompressedSize());
+        }
+    }
+
+    public List<Block> blocks() {
+        return blocks;
+    }
+
+    /**
+     * @return the blocks which together contain the given range of the uncompressed stream, in order.
+     */
+    public List<Block> covering(long uncompressedOffset, long length) {
+        var end = uncompressedOffset + length;
+        var from = floor(uncompressedOffset);
+        var to = from;
+        while (to < blocks.size() && blocks.get(to).uncompressedOffset() < end) {
+            to++;
+        }
+        return blocks.subList(from, Math.max(from, to));
+    }
+
+    /**
+     * Reads a range of the uncompressed stream by inflating only the members which cover it, the cost is independent of the range's
+     * position in the stream.
+     *
+     * @param gzipPath           the gzip file the index was built for.
+     * @param uncompressedOffset the position of the first byte to read in the uncompressed stream.
+     * @param length             the number of bytes to read.
+     * @return a buffer containing exactly the requested range.
+     * @throws IOException if a member is corrupt or the range extends beyond the end of the stream.
+     */
+    public ByteBuffer inflate(Path gzipPath, long uncompressedOffset, int length) throws IOException {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        var covering = covering(uncompressedOffset, length);
+        if (covering.isEmpty() || covering.get(0).uncompressedOffset() > uncompressedOffset) {
+            throw new IOException("Range %d+%d is not covered by the index".formatted(uncompressedOffset, length));
+        }
+
+        var first = covering.get(0);
+        var last = covering.get(covering.size() - 1);
+        var span = last.uncompressedOffset() + last.uncompressedSize() - first.uncompressedOffset();
+        if (span > Integer.MAX_VALUE) {
+            throw new IOException("Range %d+%d is too large to inflate into a single buffer".formatted(uncompressedOffset, length));
+        }
+        var output = ByteBuffer.allocateDirect((int) span);
+
+        try (var fc = FileChannel.open(gzipPath, READ)) {
+            var compressed = FileMMapPublisher.map(fc, first.compressedOffset(),
+                    last.compressedOffset() + last.compressedSize() - first.compressedOffset());
+            var inflater = new Inflater(true);
+            try {
+                for (var block : covering) {
+                    var member = compressed.slice((int) (block.compressedOffset() - first.compressedOffset()), block.compressedSize());
+                    inflateMember(inflater, member, output.slice(output.position(), block.uncompressedSize()));
+                    output.position(output.position() + block.uncompressedSize());
+                    inflater.reset();
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        var start = (int) (uncompressedOffset - first.uncompressedOffset());
+        if (start + length > span) {
+            throw new IOException("Range %d+%d extends beyond the end of the stream".formatted(uncompressedOffset, length));
+        }
+        return output.slice(start, length);
+    }
+
+    private static void inflateMember(Inflater inflater, ByteBuffer member, ByteBuffer output) throws IOException {
+        // members are written with a fixed header and no optional fields
+        if (member.remaining() < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE
+                || member.get(0) != 0x1f || member.get(1) != (byte) 0x8b || member.get(3) != 0) {
+            throw new IOException("Block is not a gzip member written by ParallelGzipProcessor");
+        }
+        var trailer = member.slice(member.limit() - GZIP_TRAILER_SIZE, GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        inflater.setInput(member.slice(GZIP_HEADER_SIZE, member.limit() - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE));
+        try {
+            while (!inflater.finished() && output.hasRemaining()) {
+                if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member", e);
+        }
+
+        var checksum = new CRC32();
+        checksum.update(output.flip());
+        if (!inflater.finished() || output.limit() != trailer.getInt(4) || (int) checksum.getValue() != trailer.getInt(0)) {
+            throw new IOException("Gzip member failed its integrity check");
+        }
+    }
+
+    private int floor(long uncompressedOffset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            var mid = (low + high + 1) >>> 1;
+            if (blocks.get(mid).uncompressedOffset() <= uncompressedOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param compressedOffset   the position of the member in the gzip file.
+     * @param uncompressedOffset the position of the member's first byte in the uncompressed stream.
+     * @param compressedSize     the size of the member in bytes, including its header and trailer.
+     * @param uncompressedSize   the number of bytes the member inflates to.
+     */
+    public record Block(long compressedOffset, long uncompressedOffset, int compressedSize, int uncompressedSize) {
+    }
+
+    /**
+     * Accumulates blocks, pass to {@link ParallelGzipProcessor#seekable(Consumer)} to build an index while compressing.
+     */
+    public static final class Builder implements Consumer<Block> {
+
+        private final List<Block> blocks = new ArrayList<>();
+
+        @Override
+        public void accept(Block block) {
+            blocks.add(block);
+        }
+
+        public GzipBlockIndex build() {
+            return new GzipBlockIndex(List.copyOf(blocks));
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package github.stephenflavin.archives.gzip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import github.stephenflavin.archives.Crc32;
+
+/**
+ * A {@link Flow.Processor} which gzips a stream of {@link ByteBuffer}s using all available cores, in the same way as pigz. The stream is
+ * split into fixed size blocks, without copying the input, which are deflated concurrently with each block primed with the last 32KiB of
+ * the block before it as a dictionary. Every block but the last is ended with a sync flush so the compressed blocks concatenate into a single
+ * deflate stream, which is published in order wrapped in a standard gzip member whose CRC-32 is combined from the per block checksums.
+ * <p>
+ * Input buffers are referenced until the block containing them has been compressed so must not be modified once published. Backpressure is
+ * applied by blocking {@link #onNext(ByteBuffer)} while {@code maxInFlight} blocks are being compressed or waiting for downstream demand,
+ * so the downstream must signal demand from a thread other than the one delivering upstream signals. Cancelling, an error or the downstream
+ * throwing from {@code onNext} unblocks the upstream and cancels it, ignoring any buffers still being published.
+ * <p>
+ * Processors created with {@link #seekable(Consumer)} instead compress every block independently into its own gzip member, in the same way
+ * as BGZF. The output is still a valid gzip file, since decompressors concatenate members, but any block can be inflated on its own so a
+ * {@link GzipBlockIndex} of the member boundaries allows random access to the uncompressed stream.
+ */
+public class ParallelGzipProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024; // 128k
+    public static final int DEFAULT_SEEKABLE_BLOCK_SIZE = 64 * 1024; // 64k, as BGZF
+
+    private static final int DICTIONARY_SIZE = 32 * 1024; // 32k
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 3 /* unix */};
+    private static ExecutorService executorService = null;
+
+    private final int blockSize;
+    private final int level;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Consumer<GzipBlockIndex.Block> blockListener;
+    private final ArrayDeque<CompletableFuture<CompressedBlock>> blocks = new ArrayDeque<>();
+
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super ByteBuffer> downstream;
+    private List<ByteBuffer> slices = new ArrayList<>();
+    private int sliceBytes;
+    private ByteBuffer dictionary;
+    private long demand;
+    private boolean requested;
+    private boolean upstreamRequested;
+    private boolean headerPublished;
+    private boolean upstreamComplete;
+    private boolean done;
+    private long crc;
+    private long uncompressedSize;
+    private long compressedSize;
+
+    public ParallelGzipProcessor() {
+        this(DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, executor(), Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param blockListener notified of each member as it is published, in order, e.g. a {@link GzipBlockIndex.Builder}.
+     */
+    public static ParallelGzipProcessor seekable(Consumer<GzipBlockIndex.Block> blockListener) {
+        return new ParallelGzipProcessor(DEFAULT_SEEKABLE_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, executor(),
+                Runtime.getRuntime().availableProcessors() * 2, blockListener);
+    }
+
+    /**
+     * @param blockSize   the number of uncompressed bytes deflated by a single task.
+     * @param level       the {@link Deflater} compression level.
+     * @param executor    runs the deflate tasks.
+     * @param maxInFlight the maximum number of blocks being compressed or waiting to be published.
+     */
+    public ParallelGzipProcessor(int blockSize, int level, Executor executor, int maxInFlight) {
+        this(blockSize, level, executor, maxInFlight, null);
+    }
+
+    /**
+     * @param blockListener when not {@code null} every block is compressed into an independent gzip member and the listener is notified
+     *                      of each as it is published.
+     */
+    public ParallelGzipProcessor(int blockSize, int level, Executor executor, int maxInFlight, Consumer<GzipBlockIndex.Block> blockListener) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+        }
+        this.blockSize = blockSize;
+        this.level = level;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.blockListener = blockListener;
+        // members carry their own headers and trailers
+        this.headerPublished = blockListener != null;
+    }
+
+    @Override
+    public synchronized void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (downstream != null) {
+            throw new IllegalStateException("ParallelGzipProcessor only supports a single subscriber");
+        }
+        downstream = subscriber;
+        subscriber.onSubscribe(new GzipSubscription());
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            upstream = subscription;
+            if (!requested || upstreamRequested) {
+                return;
+            }
+            upstreamRequested = true;
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (isDone()) {
+            return;
+        }
+        var src = item.duplicate();
+        while (src.hasRemaining()) {
+            var length = Math.min(src.remaining(), blockSize - sliceBytes);
+            slices.add(src.slice(src.position(), length));
+            src.position(src.position() + length);
+            sliceBytes += length;
+            if (sliceBytes == blockSize && !dispatch(false)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        if (done) {
+            return;
+        }
+        terminate();
+        if (downstream != null) {
+            downstream.onError(throwable);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        // the last block is always dispatched, even when empty, as it terminates the deflate stream
+        dispatch(true);
+        synchronized (this) {
+            upstreamComplete = true;
+            drain();
+        }
+    }
+
+    /**
+     * @return {@code false} once terminated, in which case nothing more is compressed.
+     */
+    private boolean dispatch(boolean last) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onError(e);
+            return false;
+        }
+        // permits are released on termination to wake a blocked upstream, which then stops compressing
+        if (isDone()) {
+            inFlight.release();
+            slices.clear();
+            sliceBytes = 0;
+            return false;
+        }
+
+        var blockSlices = slices;
+        var blockDictionary = dictionary;
+        dictionary = last || blockListener != null ? null : tail(blockSlices, sliceBytes);
+        slices = new ArrayList<>();
+        sliceBytes = 0;
+
+        var block = CompletableFuture.supplyAsync(() -> compress(blockSlices, blockDictionary, last), executor);
+        synchronized (this) {
+            blocks.add(block);
+        }
+        block.whenComplete((res, ex) -> {
+            synchronized (this) {
+                drain();
+            }
+        });
+        return true;
+    }
+
+    private CompressedBlock compress(List<ByteBuffer> input, ByteBuffer dictionary, boolean last) {
+        var deflater = new Deflater(level, true);
+        var checksum = new CRC32();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+
+            var output = ByteBuffer.allocateDirect(blockSize + (blockSize >> 3) + 64);
+            if (blockListener != null) {
+                output.put(GZIP_HEADER);
+            }
+            long length = 0;
+            for (ByteBuffer slice : input) {
+                length += slice.remaining();
+                checksum.update(slice.duplicate());
+                deflater.setInput(slice);
+                while (!deflater.needsInput()) {
+                    output = deflate(deflater, output, Deflater.NO_FLUSH);
+                }
+            }
+
+            if (last || blockListener != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output = deflate(deflater, output, Deflater.NO_FLUSH);
+                }
+            } else {
+                // a sync flush has completed once it no longer fills the output buffer
+                do {
+                    output = deflate(deflater, output, Deflater.SYNC_FLUSH);
+                } while (!output.hasRemaining());
+            }
+            if (blockListener != null) {
+                if (output.remaining() < GZIP_TRAILER_SIZE) {
+                    output = ByteBuffer.allocateDirect(output.position() + GZIP_TRAILER_SIZE).put(output.flip());
+                }
+                output.order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt((int) checksum.getValue())
+                        .putInt((int) length);
+            }
+            return new CompressedBlock(output.flip(), checksum.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer output, int flush) {
+        if (!output.hasRemaining()) {
+            output = ByteBuffer.allocateDirect(output.capacity() * 2).put(output.flip());
+        }
+        deflater.deflate(output, flush);
+        return output;
+    }
+
+    private static ByteBuffer tail(List<ByteBuffer> slices, int length) {
+        var dictionary = ByteBuffer.allocate(Math.min(DICTIONARY_SIZE, length));
+        var skip = length - dictionary.capacity();
+        for (ByteBuffer slice : slices) {
+            if (skip >= slice.remaining()) {
+                skip -= slice.remaining();
+                continue;
+            }
+            dictionary.put(slice.slice(slice.position() + skip, slice.remaining() - skip));
+            skip = 0;
+        }
+        return dictionary.flip();
+    }
+
+    private void drain() {
+        if (done || downstream == null) {
+            return;
+        }
+        if (!headerPublished && demand > 0) {
+            headerPublished = true;
+            if (!publish(ByteBuffer.wrap(GZIP_HEADER).asReadOnlyBuffer())) {
+                return;
+            }
+        }
+        while (headerPublished && demand > 0 && !blocks.isEmpty() && blocks.peek().isDone()) {
+            final CompressedBlock block;
+            try {
+                block = blocks.poll().join();
+            } catch (CompletionException e) {
+                fail(e.getCause());
+                return;
+            }
+            inFlight.release();
+            if (blockListener != null) {
+                blockListener.accept(new GzipBlockIndex.Block(compressedSize, uncompressedSize, block.data().remaining(),
+                        (int) block.length()));
+            }
+            crc = Crc32.combine(crc, block.crc(), block.length());
+            uncompressedSize += block.length();
+            compressedSize += block.data().remaining();
+            if (!publish(block.data())) {
+                return;
+            }
+        }
+        if (upstreamComplete && blocks.isEmpty() && blockListener != null) {
+            done = true;
+            downstream.onComplete();
+        } else if (upstreamComplete && blocks.isEmpty() && headerPublished && demand > 0) {
+            done = true;
+            if (publish(ByteBuffer.allocate(8)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) crc)
+                    .putInt((int) uncompressedSize)
+                    .flip())) {
+                downstream.onComplete();
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the downstream threw, in which case it has been sent {@code onError} and the upstream cancelled.
+     */
+    private boolean publish(ByteBuffer buffer) {
+        take();
+        try {
+            downstream.onNext(buffer);
+            return true;
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        terminate();
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        downstream.onError(throwable);
+    }
+
+    /**
+     * Stops publishing, releasing enough permits that an upstream blocked in {@link #onNext(ByteBuffer)} returns.
+     */
+    private void terminate() {
+        done = true;
+        blocks.clear();
+        inFlight.release(maxInFlight);
+    }
+
+    private synchronized boolean isDone() {
+        return done;
+    }
+
+    private void take() {
+        if (demand != Long.MAX_VALUE) {
+            demand--;
+        }
+    }
+
+    private static synchronized Executor executor() {
+        if (executorService == null) {
+            var threadCount = new AtomicInteger();
+            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                var thread = new Thread(r, "gzip-deflate-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    private class GzipSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            synchronized (ParallelGzipProcessor.this) {
+                if (n <= 0) {
+                    downstream.onError(new IllegalArgumentException("§3.9: non-positive requests are not allowed!"));
+                    return;
+                }
+                var sum = demand + n;
+                demand = sum < 0 ? Long.MAX_VALUE : sum;
+                requested = true;
+                drain();
+                if (upstreamRequested || upstream == null) {
+                    return;
+                }
+                upstreamRequested = true;
+            }
+            // requested outside the lock as the upstream may publish synchronously, backpressure is applied by blocking onNext
+            upstream.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (ParallelGzipProcessor.this) {
+                if (done) {
+                    return;
+                }
+                terminate();
+                if (upstream != null) {
+                    upstream.cancel();
+                }
+            }
+        }
+    }
+
+    private record CompressedBlock(ByteBuffer data, long crc, long length) {
+    }
+}
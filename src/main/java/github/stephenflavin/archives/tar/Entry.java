@@ -11,4 +11,16 @@ public record Entry(Header header, FileMMapPublisher fileMMapPublisher) {
         return new Entry(github.stephenflavin.archives.tar.Header.from(path), new FileMMapPublisher(path));
     }
 
+    /**
+     * @param unmapOnRelease see {@link FileMMapPublisher#FileMMapPublisher(Path, boolean)}.
+     * @return an entry for the walked path, directories have no {@link FileMMapPublisher}.
+     */
+    static Entry from(HeaderPrefetcher.PrefetchedEntry prefetchedEntry, boolean unmapOnRelease) {
+        var header = prefetchedEntry.header();
+        if (header.getTypeFlag() == Header.DIRECTORY) {
+            return new Entry(header, null);
+        }
+        return new Entry(header, new FileMMapPublisher(prefetchedEntry.entryPath().path(), unmapOnRelease));
+    }
+
 }
@@ -7,7 +7,9 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 //struct star_header
@@ -46,15 +48,24 @@ public final class Header {
     private static final byte[] VERSION = "00".getBytes(US_ASCII);
     private static final String[] ZEROS_PADDING = {"", "0", "00", "000", "0000", "00000", "000000", "0000000", "0000000", "00000000",
             "000000000", "0000000000", "00000000000"};
-    private static final byte[] ZERO_FIXED_LENGTH_OCTAL = (toFixedLengthOctal(6, 0) + BLANK).getBytes(US_ASCII);
     private static final long MAX_SIZE = (1024 * 1024 * 1024 * 64L) - 1;
+    private static final String ATTRIBUTES = "unix:size,isRegularFile,isDirectory,gid,uid,lastModifiedTime,mode";
+    // resolving a uid/gid to a name is a passwd/group lookup per stat, names are cached for the life of the process
+    private static final Map<Integer, String> OWNER_NAMES = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> GROUP_NAMES = new ConcurrentHashMap<>();
+    static final byte REGULAR = '0';
+    static final byte DIRECTORY = '5';
     private ByteBuffer buffer;
 
     public Header(ByteBuffer buffer) {
+        this(buffer, true);
+    }
+
+    private Header(ByteBuffer buffer, boolean copyReadOnly) {
         if (buffer.capacity() != 512) {
             throw new IllegalArgumentException("Buffer length is not equal to 512 bytes");
         }
-        if (buffer.isReadOnly()) {
+        if (buffer.isReadOnly() && copyReadOnly) {
             this.buffer = ByteBuffer.allocate(512)
                     .put(buffer);
         } else {
@@ -66,31 +77,78 @@ public final class Header {
         this.buffer = ByteBuffer.allocate(512);
     }
 
+    /**
+     * Creates a read-only header backed directly by the given 512 byte block (e.g. a slice of a mapped archive), no bytes are copied.
+     */
+    public static Header view(ByteBuffer block) {
+        return new Header(block.isReadOnly() ? block : block.asReadOnlyBuffer(), false);
+    }
+
     public static Header from(Path path) throws IOException {
-        var attributes = Files.readAttributes(path, "unix:size,isRegularFile,gid,uid,lastModifiedTime,mode,group,owner");
-        return from(path, attributes);
+        return from(path, ByteBuffer.allocate(512));
+    }
+
+    /**
+     * @param block the 512 byte buffer to encode the header into, e.g. a direct buffer allocated from a {@link HeaderArena}.
+     */
+    public static Header from(Path path, ByteBuffer block) throws IOException {
+        return from(path, path.getFileName().toString(), block);
+    }
+
+    /**
+     * @param entryName the path of the entry within the archive, directories are suffixed with {@code '/'} if required.
+     * @param block     the 512 byte buffer to encode the header into.
+     */
+    public static Header from(Path path, String entryName, ByteBuffer block) throws IOException {
+        return from(entryName, readAttributes(path), block);
+    }
+
+    /**
+     * Reads the attributes required to create a header, the {@code owner} and {@code group} names are resolved from a cache keyed by uid
+     * and gid and only read from the file system for ids which haven't been seen before.
+     */
+    static Map<String, Object> readAttributes(Path path) throws IOException {
+        var attributes = new HashMap<>(Files.readAttributes(path, ATTRIBUTES));
+        var uid = (int) attributes.get("uid");
+        var gid = (int) attributes.get("gid");
+        var owner = OWNER_NAMES.get(uid);
+        var group = GROUP_NAMES.get(gid);
+        if (owner == null || group == null) {
+            var names = Files.readAttributes(path, "unix:owner,group");
+            owner = OWNER_NAMES.computeIfAbsent(uid, id -> names.get("owner").toString());
+            group = GROUP_NAMES.computeIfAbsent(gid, id -> names.get("group").toString());
+        }
+        attributes.put("owner", owner);
+        attributes.put("group", group);
+        return attributes;
     }
 
     public static Header from(Path path, Map<String, Object> attributes) {
-        if (Boolean.FALSE.equals(attributes.get("isRegularFile"))) {
-            throw new UnsupportedOperationException("Only regular files can be tared");
+        return from(path, attributes, ByteBuffer.allocate(512));
+    }
+
+    public static Header from(Path path, Map<String, Object> attributes, ByteBuffer block) {
+        return from(path.getFileName().toString(), attributes, block);
+    }
+
+    private static Header from(String entryName, Map<String, Object> attributes, ByteBuffer block) {
+        var directory = Boolean.TRUE.equals(attributes.get("isDirectory"));
+        if (!directory && Boolean.FALSE.equals(attributes.get("isRegularFile"))) {
+            throw new UnsupportedOperationException("Only regular files and directories can be tared");
         }
 
-        return new Header()
-                .setFileName(path.getFileName().toString())
-                .magic(USTAR_MAGIC)
-                .version(VERSION)
-                .size((long) attributes.get("size"))
+        new Encoder()
+                .path(directory && !entryName.endsWith("/") ? entryName + "/" : entryName)
+                .size(directory ? 0 : (long) attributes.get("size"))
                 .gid((int) attributes.get("gid"))
                 .uid((int) attributes.get("uid"))
                 .mtime(((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.SECONDS))
-                .devmajor(ZERO_FIXED_LENGTH_OCTAL)
-                .devminor(ZERO_FIXED_LENGTH_OCTAL)
-                .setMode((int) attributes.get("mode"))
-                .typeFlag((byte) 48) // todo look into support for other types
+                .mode((int) attributes.get("mode"))
+                .typeFlag(directory ? DIRECTORY : REGULAR) // todo look into support for other types
                 .gname(attributes.get("group").toString())
                 .uname(attributes.get("owner").toString())
-                .build();
+                .encodeTo(block, 0);
+        return view(block);
     }
 
     private static String toFixedLengthOctal(int fixedLength, int value) {
@@ -328,6 +386,93 @@ public final class Header {
         return this;
     }
 
+    /**
+     * @return the entry name with trailing NULs removed, joined to the {@code prefix} field when one is present.
+     */
+    public String parseName() {
+        var name = parseString(0, 100);
+        var prefix = parseString(345, 155);
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    public int parseMode() {
+        return (int) parseNumeric(100, 8);
+    }
+
+    public int parseUid() {
+        return (int) parseNumeric(108, 8);
+    }
+
+    public int parseGid() {
+        return (int) parseNumeric(116, 8);
+    }
+
+    public long parseSize() {
+        return parseNumeric(124, 12);
+    }
+
+    public long parseMtime() {
+        return parseNumeric(136, 12);
+    }
+
+    public String parseLinkName() {
+        return parseString(157, 100);
+    }
+
+    public String parseUname() {
+        return parseString(265, 32);
+    }
+
+    public String parseGname() {
+        return parseString(297, 32);
+    }
+
+    public boolean hasValidChecksum() {
+        // checksum is treated as " " when calculating the checksum
+        long sum = 8 * ' ';
+        for (int i = 0; i < 512; i++) {
+            if (i < 148 || i >= 156) {
+                sum += buffer.get(i) & 0xff;
+            }
+        }
+        return sum == parseNumeric(148, 8);
+    }
+
+    private String parseString(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - offset];
+        buffer.get(offset, bytes);
+        return new String(bytes, US_ASCII);
+    }
+
+    private long parseNumeric(int offset, int length) {
+        if ((buffer.get(offset) & 0x80) != 0) {
+            // GNU base-256 encoding used for values which do not fit the octal field
+            long value = buffer.get(offset) & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (buffer.get(i) & 0xff);
+            }
+            return value;
+        }
+        int i = offset;
+        int end = offset + length;
+        while (i < end && (buffer.get(i) == ' ' || buffer.get(i) == 0)) {
+            i++;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '7') {
+                break;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
     public Map<String, Object> asMap() {
         return Map.ofEntries(
                 Map.entry("name", getFileName()),
@@ -353,4 +498,176 @@ public final class Header {
         return this;
     }
 
+    /**
+     * Encodes ustar headers straight into a target buffer without creating any intermediate objects, octal digits are written directly
+     * and the checksum is accumulated as each field is written rather than re-summing the block. An encoder can be reused for any number of
+     * headers, fields keep their values between calls to {@link #encodeTo(ByteBuffer, int)}.
+     * <p>
+     * Text fields are written as ASCII, any other character is replaced with {@code '?'}.
+     */
+    public static final class Encoder {
+
+        private CharSequence name = "";
+        private int prefixLength;
+        private CharSequence linkName = "";
+        private CharSequence uname = "";
+        private CharSequence gname = "";
+        private int mode;
+        private int uid;
+        private int gid;
+        private long size;
+        private long mtime;
+        private byte typeFlag = '0';
+
+        public Encoder name(CharSequence name) {
+            if (name.length() > 100) {
+                throw new UnsupportedOperationException("File name \"" + name + "\"exceeds posix header limit");
+            }
+            this.name = name;
+            this.prefixLength = 0;
+            return this;
+        }
+
+        /**
+         * Sets the entry's full path, paths longer than the 100 byte {@code name} field are split at a {@code '/'} with the leading part
+         * stored in the 155 byte {@code prefix} field.
+         */
+        public Encoder path(CharSequence path) {
+            int length = path.length();
+            if (length <= 100) {
+                return name(path);
+            }
+            // the separator itself is not stored, the name must be non-empty and fit in 100 bytes, the prefix in 155 bytes
+            for (int i = length - 101; i <= Math.min(155, length - 2); i++) {
+                if (path.charAt(i) == '/') {
+                    this.name = path;
+                    this.prefixLength = i;
+                    return this;
+                }
+            }
+            throw new UnsupportedOperationException("Path \"" + path + "\" exceeds posix header limits");
+        }
+
+        public Encoder linkName(CharSequence linkName) {
+            if (linkName.length() > 100) {
+                throw new IllegalArgumentException("link name exceeds posix header limit");
+            }
+            this.linkName = linkName;
+            return this;
+        }
+
+        public Encoder uname(CharSequence uname) {
+            if (uname.length() > 32) {
+                throw new IllegalArgumentException("uname exceeds posix header limit");
+            }
+            this.uname = uname;
+            return this;
+        }
+
+        public Encoder gname(CharSequence gname) {
+            if (gname.length() > 32) {
+                throw new IllegalArgumentException("gname exceeds posix header limit");
+            }
+            this.gname = gname;
+            return this;
+        }
+
+        public Encoder mode(int mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Encoder uid(int uid) {
+            this.uid = uid;
+            return this;
+        }
+
+        public Encoder gid(int gid) {
+            this.gid = gid;
+            return this;
+        }
+
+        public Encoder size(long size) {
+            if (size > MAX_SIZE) {
+                throw new UnsupportedOperationException("%s is too large at %dbytes. (MAX_FILE_SIZE=%d)".formatted(name, size, MAX_SIZE));
+            }
+            this.size = size;
+            return this;
+        }
+
+        public Encoder mtime(long mtime) {
+            this.mtime = mtime;
+            return this;
+        }
+
+        public Encoder typeFlag(byte typeFlag) {
+            this.typeFlag = typeFlag;
+            return this;
+        }
+
+        /**
+         * Writes the 512 byte header at {@code offset} using absolute puts, the target's position is unchanged.
+         */
+        public void encodeTo(ByteBuffer target, int offset) {
+            // checksum is treated as " " when calculating the checksum
+            long checksum = 8 * ' ';
+            var nameStart = prefixLength == 0 ? 0 : prefixLength + 1;
+            checksum += putText(target, offset, 100, name, nameStart, name.length());
+            checksum += putOctal(target, offset + 100, 6, mode) + putByte(target, offset + 106, ' ') + putByte(target, offset + 107, 0);
+            checksum += putOctal(target, offset + 108, 6, uid) + putByte(target, offset + 114, ' ') + putByte(target, offset + 115, 0);
+            checksum += putOctal(target, offset + 116, 6, gid) + putByte(target, offset + 122, ' ') + putByte(target, offset + 123, 0);
+            checksum += putOctal(target, offset + 124, 12, size);
+            checksum += putOctal(target, offset + 136, 12, mtime);
+            checksum += putByte(target, offset + 156, typeFlag);
+            checksum += putText(target, offset + 157, 100, linkName, 0, linkName.length());
+            checksum += putBytes(target, offset + 257, USTAR_MAGIC) + putBytes(target, offset + 263, VERSION);
+            checksum += putText(target, offset + 265, 32, uname, 0, uname.length());
+            checksum += putText(target, offset + 297, 32, gname, 0, gname.length());
+            checksum += putOctal(target, offset + 329, 6, 0) + putByte(target, offset + 335, ' ') + putByte(target, offset + 336, 0);
+            checksum += putOctal(target, offset + 337, 6, 0) + putByte(target, offset + 343, ' ') + putByte(target, offset + 344, 0);
+            checksum += putText(target, offset + 345, 155, name, 0, prefixLength);
+            for (int i = offset + 500; i < offset + 512; i++) {
+                target.put(i, (byte) 0);
+            }
+
+            putOctal(target, offset + 148, 6, checksum);
+            target.put(offset + 154, (byte) 0);
+            target.put(offset + 155, (byte) ' ');
+        }
+
+        private static int putByte(ByteBuffer target, int index, int b) {
+            target.put(index, (byte) b);
+            return b & 0xff;
+        }
+
+        private static int putBytes(ByteBuffer target, int index, byte[] bytes) {
+            int sum = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                sum += putByte(target, index + i, bytes[i]);
+            }
+            return sum;
+        }
+
+        private static int putText(ByteBuffer target, int index, int length, CharSequence text, int start, int end) {
+            int sum = 0;
+            for (int i = 0; i < length; i++) {
+                int c = start + i < end ? text.charAt(start + i) : 0;
+                sum += putByte(target, index + i, c < 0x80 ? c : '?');
+            }
+            return sum;
+        }
+
+        private static int putOctal(ByteBuffer target, int index, int digits, long value) {
+            if (value < 0 || (digits < 21 && value >>> (digits * 3) != 0)) {
+                throw new IllegalArgumentException(value + " does not fit in " + digits + " octal digits");
+            }
+            int sum = 0;
+            for (int i = index + digits - 1; i >= index; i--) {
+                sum += putByte(target, i, '0' + (int) (value & 7));
+                value >>>= 3;
+            }
+            return sum;
+        }
+    }
+
 }
@@ -0,0 +1,42 @@
+package github.stephenflavin.archives.tar;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carves 512 byte header blocks out of a few large direct buffers shared by a single archive build, so headers are written without NIO
+ * copying them into a temporary direct buffer and without a heap allocation per entry. Slabs start small and double in size up to
+ * {@link #MAX_SLAB_HEADERS} headers so small archives don't reserve a large amount of memory.
+ * <p>
+ * Blocks are never reused, {@link #release()} drops the arena's references to its slabs so the memory is freed once the last published
+ * header referencing it is unreachable.
+ */
+final class HeaderArena {
+
+    private static final int HEADER_SIZE = 512;
+    private static final int MIN_SLAB_HEADERS = 16;
+    private static final int MAX_SLAB_HEADERS = 2048; // 1m slabs
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private ByteBuffer slab;
+    private int slabHeaders;
+    private int next;
+
+    ByteBuffer allocate() {
+        if (slab == null || next == slabHeaders) {
+            slabHeaders = slab == null ? MIN_SLAB_HEADERS : Math.min(slabHeaders * 2, MAX_SLAB_HEADERS);
+            slab = ByteBuffer.allocateDirect(slabHeaders * HEADER_SIZE);
+            slabs.add(slab);
+            next = 0;
+        }
+        return slab.slice(next++ * HEADER_SIZE, HEADER_SIZE);
+    }
+
+    void release() {
+        slabs.clear();
+        slab = null;
+        slabHeaders = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,113 @@
+package github.stephenflavin.archives.tar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import github.stephenflavin.archives.EntryWalker;
+
+/**
+ * Reads attributes and encodes the {@link Header}s of walked entries up to {@code lookahead} entries ahead of the consumer on a separate
+ * executor, so that writing data never waits on a stat call, which dominates on network file systems. Headers are returned in walk order.
+ * <p>
+ * Header blocks are allocated from the {@link HeaderArena} on the consuming thread, only the encoding into them happens asynchronously.
+ */
+final class HeaderPrefetcher implements Iterator<HeaderPrefetcher.PrefetchedEntry>, Closeable {
+
+    static final int DEFAULT_LOOKAHEAD = 32;
+
+    private static ExecutorService executorService = null;
+
+    private final EntryWalker entryWalker;
+    private final HeaderArena headerArena;
+    private final int lookahead;
+    private final Executor executor;
+    private final ArrayDeque<CompletableFuture<PrefetchedEntry>> pending;
+
+    HeaderPrefetcher(EntryWalker entryWalker, HeaderArena headerArena) {
+        this(entryWalker, headerArena, DEFAULT_LOOKAHEAD, null);
+    }
+
+    /**
+     * @param lookahead the number of headers to prepare ahead of the consumer, {@code 0} reads attributes on the consuming thread.
+     * @param executor  runs the attribute reads and header encoding, {@code null} uses a shared pool of daemon threads.
+     */
+    HeaderPrefetcher(EntryWalker entryWalker, HeaderArena headerArena, int lookahead, Executor executor) {
+        this.entryWalker = entryWalker;
+        this.headerArena = headerArena;
+        this.lookahead = lookahead;
+        if (lookahead == 0) {
+            this.executor = Runnable::run;
+        } else {
+            this.executor = executor == null ? executor() : executor;
+        }
+        this.pending = new ArrayDeque<>(Math.max(1, lookahead));
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public PrefetchedEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var next = pending.poll();
+        fill();
+        try {
+            return next.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private void fill() {
+        while (pending.size() < Math.max(1, lookahead) && entryWalker.hasNext()) {
+            var entryPath = entryWalker.next();
+            var block = headerArena.allocate();
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new PrefetchedEntry(entryPath, Header.from(entryPath.path(), entryPath.name(), block));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+    }
+
+    @Override
+    public void close() {
+        entryWalker.close();
+        pending.clear();
+    }
+
+    private static synchronized Executor executor() {
+        if (executorService == null) {
+            var threadCount = new AtomicInteger();
+            executorService = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), r -> {
+                var thread = new Thread(r, "tar-header-prefetch-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    record PrefetchedEntry(EntryWalker.EntryPath entryPath, Header header) {
+    }
+}
@@ -0,0 +1,93 @@
+package github.stephenflavin.archives.tar;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.gzip.GzipBlockIndex;
+import github.stephenflavin.archives.gzip.ParallelGzipProcessor;
+
+/**
+ * Random access to the entries of a tar.gz written as independent gzip members by
+ * {@link TarUtility#createSeekableTarGzFile(Path, Path, Path...)}. A {@link TarIndex} maps entry names to offsets in the uncompressed tar
+ * and a {@link GzipBlockIndex} maps those offsets to members, so reading an entry only inflates the members covering it.
+ * <p>
+ * Both indexes are persisted in a single sidecar file, the tar index section followed by the gzip block index section.
+ *
+ * @see ParallelGzipProcessor#seekable(java.util.function.Consumer)
+ */
+public final class SeekableTarGz {
+
+    private final Path archivePath;
+    private final TarIndex tarIndex;
+    private final GzipBlockIndex blockIndex;
+
+    public SeekableTarGz(Path archivePath, TarIndex tarIndex, GzipBlockIndex blockIndex) {
+        this.archivePath = archivePath;
+        this.tarIndex = tarIndex;
+        this.blockIndex = blockIndex;
+    }
+
+    /**
+     * Opens an archive using an index previously written with {@link #writeIndex(Path)}.
+     */
+    public static SeekableTarGz open(Path archivePath, Path indexPath) throws IOException {
+        try (var fc = FileChannel.open(indexPath, READ)) {
+            var buffer = FileMMapPublisher.map(fc, 0, fc.size());
+            var tarIndex = TarIndex.readFrom(buffer);
+            return new SeekableTarGz(archivePath, tarIndex, GzipBlockIndex.readFrom(buffer));
+        }
+    }
+
+    public void writeIndex(Path indexPath) throws IOException {
+        var buffer = ByteBuffer.allocateDirect(tarIndex.encodedSize() + blockIndex.encodedSize());
+        tarIndex.writeTo(buffer);
+        blockIndex.writeTo(buffer);
+        try (var fc = FileChannel.open(indexPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+    }
+
+    public TarIndex tarIndex() {
+        return tarIndex;
+    }
+
+    public GzipBlockIndex blockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * Inflates only the data of the named entry.
+     *
+     * @throws IllegalArgumentException if the index has no entry with the given name.
+     * @throws IOException              if the entry is larger than a single buffer or the archive is corrupt.
+     */
+    public ByteBuffer read(String name) throws IOException {
+        var entry = entry(name);
+        if (entry.size() > Integer.MAX_VALUE) {
+            throw new IOException("%s is %d bytes, too large to inflate into a single buffer".formatted(name, entry.size()));
+        }
+        return blockIndex.inflate(archivePath, entry.dataOffset(), (int) entry.size());
+    }
+
+    /**
+     * Inflates the header block of the named entry, useful for restoring its mode and ownership.
+     */
+    public Header header(String name) throws IOException {
+        return Header.view(blockIndex.inflate(archivePath, entry(name).headerOffset(), UntaringPublisher.BLOCK_SIZE));
+    }
+
+    private TarIndex.IndexEntry entry(String name) {
+        return tarIndex.lookup(name).orElseThrow(() -> new IllegalArgumentException("No entry named \"" + name + "\" in index"));
+    }
+}
@@ -0,0 +1,277 @@
+package github.stephenflavin.archives.tar;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.INFO;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts tar archives to disk. The headers are walked once on the calling thread, creating directories and links, while the payload of
+ * each regular file is written concurrently on the provided {@link Executor} using positional writes straight from the mapped archive.
+ * <p>
+ * Links are created once every file has been written, hard links then symbolic links, so no file is written through a link from the
+ * archive. Files are created without following links and entries whose real parent directory is outside of the destination are
+ * rejected. Files appearing more than once in the archive are written in turn, so the last one wins.
+ */
+public class TarExtractor {
+
+    private static final System.Logger logger = System.getLogger(TarExtractor.class.toString());
+    private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+    /**
+     * Extracts the archive using a fixed pool with a thread per available processor which is shut down once extraction completes.
+     */
+    public static CompletableFuture<Path> extract(Path archivePath, Path destination) {
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                r -> new Thread(r, "tar-extractor-io-thread-" + threadCount.incrementAndGet()));
+        return extract(archivePath, destination, executor)
+                .whenComplete((res, ex) -> executor.shutdown());
+    }
+
+    /**
+     * @param archivePath the tar archive to extract.
+     * @param destination the directory to extract into, created if it does not exist.
+     * @param executor    runs the writes of file payloads, e.g. {@link Executors#newVirtualThreadPerTaskExecutor()}.
+     */
+    public static CompletableFuture<Path> extract(Path archivePath, Path destination, Executor executor) {
+        Extraction extraction;
+        try {
+            extraction = new Extraction(Files.createDirectories(destination).toRealPath(), executor);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        new UntaringPublisher(archivePath).subscribe(extraction);
+        return extraction.walked
+                .thenCompose(v -> CompletableFuture.allOf(extraction.writes.toArray(CompletableFuture[]::new)))
+                .thenApply(v -> {
+                    extraction.finish();
+                    return destination;
+                });
+    }
+
+    private static final class Extraction implements Flow.Subscriber<UntaringPublisher.TarEntry> {
+
+        private final Path destination;
+        private final Executor executor;
+        private final CompletableFuture<Void> walked = new CompletableFuture<>();
+        private final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        private final Map<Path, CompletableFuture<Void>> fileWrites = new HashMap<>();
+        private final List<UntaringPublisher.TarEntry> hardLinks = new ArrayList<>();
+        private final List<UntaringPublisher.TarEntry> symbolicLinks = new ArrayList<>();
+        private final List<UntaringPublisher.TarEntry> directories = new ArrayList<>();
+        private final Set<Path> createdDirectories = new HashSet<>();
+        private Flow.Subscription subscription;
+
+        private Extraction(Path destination, Executor executor) {
+            this.destination = destination;
+            this.executor = executor;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(UntaringPublisher.TarEntry entry) {
+            try {
+                var target = resolve(entry.name());
+                switch (entry.header().getTypeFlag()) {
+                    case 0, '0', '7' -> {
+                        createParentDirectories(target, entry.name());
+                        // a file appearing again is written once the earlier write completes
+                        var previous = fileWrites.get(target);
+                        var write = previous == null
+                                ? CompletableFuture.runAsync(() -> writeFile(entry, target), executor)
+                                : previous.thenRunAsync(() -> writeFile(entry, target), executor);
+                        fileWrites.put(target, write);
+                        writes.add(write);
+                    }
+                    case '5' -> {
+                        if (createdDirectories.add(target)) {
+                            createContainedDirectories(target, entry.name());
+                        }
+                        directories.add(entry);
+                    }
+                    // the link target may still be being written so hard links are created once all writes complete, and symbolic links
+                    // after them so nothing is written through a link
+                    case '1' -> hardLinks.add(entry);
+                    case '2' -> symbolicLinks.add(entry);
+                    default -> logger.log(DEBUG, "Skipping entry \"{0}\" with unsupported type flag {1}",
+                            entry.name(),
+                            (char) entry.header().getTypeFlag());
+                }
+            } catch (IOException | RuntimeException e) {
+                subscription.cancel();
+                walked.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            walked.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            walked.complete(null);
+        }
+
+        private void writeFile(UntaringPublisher.TarEntry entry, Path target) {
+            try {
+                // replaces whatever is at the target, the new file is created without following links
+                Files.deleteIfExists(target);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try (var channel = FileChannel.open(target, CREATE_NEW, WRITE, NOFOLLOW_LINKS)) {
+                if (entry.size() > 0) {
+                    // write the last byte first so concurrent writers don't repeatedly extend their files
+                    var last = entry.data().get(entry.data().size() - 1);
+                    channel.write(last.slice(last.limit() - 1, 1), entry.size() - 1);
+                }
+                long position = 0;
+                for (ByteBuffer buffer : entry.data()) {
+                    var src = buffer.duplicate();
+                    while (src.hasRemaining()) {
+                        position += channel.write(src, position);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            applyMetadata(entry.header(), target);
+        }
+
+        private void finish() {
+            try {
+                for (var entry : hardLinks) {
+                    var target = resolve(entry.name());
+                    createContainedDirectories(target.getParent(), entry.name());
+                    var existing = resolve(entry.header().parseLinkName());
+                    checkContained(existing.toRealPath(), entry.header().parseLinkName());
+                    Files.deleteIfExists(target);
+                    Files.createLink(target, existing);
+                }
+                for (var entry : symbolicLinks) {
+                    var target = resolve(entry.name());
+                    // earlier links may now be parents of the link
+                    createContainedDirectories(target.getParent(), entry.name());
+                    Files.deleteIfExists(target);
+                    Files.createSymbolicLink(target, Path.of(entry.header().parseLinkName()));
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new CompletionException(e);
+            }
+            // applied last, and deepest first, since creating the contents of a directory updates its mtime
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                var entry = directories.get(i);
+                var target = resolve(entry.name());
+                // skips directories replaced by a link
+                if (Files.isDirectory(target, NOFOLLOW_LINKS)) {
+                    applyMetadata(entry.header(), target);
+                }
+            }
+        }
+
+        private Path resolve(String name) {
+            var target = destination.resolve(name).normalize();
+            if (!target.startsWith(destination)) {
+                throw new IllegalArgumentException("Entry \"" + name + "\" would be extracted outside of " + destination);
+            }
+            return target;
+        }
+
+        private void createParentDirectories(Path target, String name) throws IOException {
+            var parent = target.getParent();
+            if (createdDirectories.add(parent)) {
+                createContainedDirectories(parent, name);
+            }
+        }
+
+        /**
+         * Creates the directory and any missing parents, once the deepest which exists is found to be within the destination when links
+         * are resolved.
+         */
+        private void createContainedDirectories(Path directory, String name) throws IOException {
+            var existing = directory;
+            while (!Files.exists(existing, NOFOLLOW_LINKS)) {
+                existing = existing.getParent();
+            }
+            checkContained(existing.toRealPath(), name);
+            Files.createDirectories(directory);
+        }
+
+        /**
+         * Rejects entries which existing links would lead outside of the destination.
+         */
+        private void checkContained(Path realPath, String name) {
+            if (!realPath.startsWith(destination)) {
+                throw new IllegalArgumentException("Entry \"" + name + "\" would be extracted outside of " + destination);
+            }
+        }
+
+        private static void applyMetadata(Header header, Path target) {
+            try {
+                var mode = header.parseMode();
+                var permissions = EnumSet.noneOf(PosixFilePermission.class);
+                for (int i = 0; i < PERMISSIONS.length; i++) {
+                    // PosixFilePermission is declared in order from OWNER_READ (0400) to OTHERS_EXECUTE (0001)
+                    if ((mode & (0400 >> i)) != 0) {
+                        permissions.add(PERMISSIONS[i]);
+                    }
+                }
+                Files.setPosixFilePermissions(target, permissions);
+            } catch (UnsupportedOperationException e) {
+                // not a posix file system, permissions are left as the defaults
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            try {
+                Files.setLastModifiedTime(target, FileTime.from(header.parseMtime(), TimeUnit.SECONDS));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var archivePath = Path.of(args[0]);
+        var destination = Path.of(args.length > 1 ? args[1] : ".");
+
+        logger.log(INFO, "Starting to extract {0} to {1}", archivePath, destination);
+        var started = Clock.systemUTC().millis();
+        extract(archivePath, destination).join();
+        logger.log(INFO, "Completed extracting tarball in {0} seconds", (Clock.systemUTC().millis() - started) / 1000d);
+    }
+}
@@ -0,0 +1,179 @@
+package github.stephenflavin.archives.tar;
+
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves tar archives of files and directories under a root directory, built while they are sent rather than staged on disk. The paths to
+ * archive are passed as {@code path} query parameters relative to the root, e.g. {@code /tar?path=logs&path=config/app.yml}.
+ * <p>
+ * A {@link TarLayout} is computed from the headers up front so the exact {@code Content-Length} is sent before any data. Full downloads
+ * are streamed from a {@link TaringPublisher}, while single {@code Range} requests only map the entries the range overlaps, so resuming a
+ * large download starts immediately. The {@code ETag} is derived from the headers, i.e. entry names, sizes and modification times, so
+ * {@code If-Range} falls back to a full download if any file has changed.
+ */
+public class TarHttpHandler implements HttpHandler {
+
+    private static final System.Logger logger = System.getLogger(TarHttpHandler.class.toString());
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final Path root;
+
+    public TarHttpHandler(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final Path[] paths;
+            try {
+                paths = resolve(exchange.getRequestURI());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            var layout = TarLayout.of(paths);
+            var etag = etag(layout);
+            var headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/x-tar");
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+
+            var from = 0L;
+            var to = layout.size();
+            var status = 200;
+            var rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+            var ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (rangeHeader != null && (ifRange == null || ifRange.equals(etag))) {
+                var range = RANGE.matcher(rangeHeader.trim());
+                // multiple ranges are answered with the whole archive, which RFC 9110 allows
+                if (range.matches()) {
+                    if (range.group(1).isEmpty()) {
+                        var suffix = range.group(2).isEmpty() ? 0 : Long.parseLong(range.group(2));
+                        from = Math.max(0, layout.size() - suffix);
+                    } else {
+                        from = Long.parseLong(range.group(1));
+                        if (!range.group(2).isEmpty()) {
+                            to = Math.min(to, Long.parseLong(range.group(2)) + 1);
+                        }
+                    }
+                    if (from >= to) {
+                        headers.set("Content-Range", "bytes */" + layout.size());
+                        exchange.sendResponseHeaders(416, -1);
+                        return;
+                    }
+                    status = 206;
+                    headers.set("Content-Range", "bytes %d-%d/%d".formatted(from, to - 1, layout.size()));
+                }
+            }
+
+            if (method.equals("HEAD")) {
+                headers.set("Content-Length", Long.toString(to - from));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(status, to - from);
+            var body = Channels.newChannel(exchange.getResponseBody());
+            if (status == 200) {
+                // written on this thread so concurrent downloads don't queue behind each other on TarUtility's io thread
+                TarUtility.createTarFile(body, Runnable::run, paths).join();
+            } else {
+                layout.writeRange(body, from, to);
+            }
+        } catch (CompletionException e) {
+            logger.log(WARNING, "Failed to send tar", e.getCause());
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(WARNING, "Failed to send tar", e);
+        }
+    }
+
+    private Path[] resolve(URI uri) throws IOException {
+        // links are resolved so a link under the root can't serve what it points to outside of it
+        var realRoot = root.toRealPath();
+        var paths = new ArrayList<Path>();
+        var query = uri.getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                var separator = parameter.indexOf('=');
+                if (separator < 0 || !URLDecoder.decode(parameter.substring(0, separator), UTF_8).equals("path")) {
+                    continue;
+                }
+                var path = root.resolve(URLDecoder.decode(parameter.substring(separator + 1), UTF_8)).normalize();
+                if (!path.startsWith(root)) {
+                    throw new IllegalArgumentException("Path is outside of the served directory: " + path);
+                }
+                if (!Files.exists(path)) {
+                    throw new IllegalArgumentException("Path does not exist: " + root.relativize(path));
+                }
+                if (!path.toRealPath().startsWith(realRoot)) {
+                    throw new IllegalArgumentException("Path is outside of the served directory: " + root.relativize(path));
+                }
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("At least one path query parameter is required");
+        }
+        return paths.toArray(Path[]::new);
+    }
+
+    private static String etag(TarLayout layout) {
+        var checksum = new CRC32();
+        for (var slot : layout.slots()) {
+            checksum.update(slot.header().getBuffer());
+        }
+        return "\"%08x-%x\"".formatted(checksum.getValue(), layout.size());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        var bytes = message.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * Serves {@code args[1]} at {@code /tar} on port {@code args[0]}.
+     */
+    public static void main(String[] args) throws IOException {
+        var port = Integer.parseInt(args[0]);
+        var root = Path.of(args[1]);
+        var threadCount = new AtomicInteger();
+        var server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/tar", new TarHttpHandler(root));
+        // each download occupies its thread until it has been sent
+        server.setExecutor(Executors.newCachedThreadPool(r -> new Thread(r, "tar-http-thread-" + threadCount.incrementAndGet())));
+        server.start();
+        logger.log(INFO, "Serving tars of {0} at http://localhost:{1}/tar", root.toAbsolutePath(), Integer.toString(port));
+    }
+}
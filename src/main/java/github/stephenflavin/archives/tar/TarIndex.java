@@ -0,0 +1,240 @@
+package github.stephenflavin.archives.tar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+
+/**
+ * A random access index of the entries in a tar archive, allowing a single entry to be located and mapped without reading any of the
+ * headers which precede it.
+ * <p>
+ * An index can be built by scanning an existing archive with {@link #scan(Path)}, or on the fly while the archive is written by passing a
+ * {@link Builder} as the header listener of a {@link TaringPublisher}. It is persisted as a compact binary sidecar file:
+ * <pre>
+ * int   magic ("ZCTI")
+ * int   version
+ * int   entry count
+ * entries {
+ *   long  header offset
+ *   long  data offset
+ *   long  size
+ *   long  mtime (seconds)
+ *   short name length
+ *   byte  name[name length] (UTF-8)
+ * }
+ * </pre>
+ */
+public final class TarIndex {
+
+    private static final int MAGIC = 0x5A435449; // ZCTI
+    private static final int VERSION = 1;
+    private static final int FIXED_ENTRY_SIZE = Long.BYTES * 4 + Short.BYTES;
+
+    private final Map<String, IndexEntry> entries;
+
+    private TarIndex(Map<String, IndexEntry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Builds an index by walking the headers of an existing archive.
+     */
+    public static TarIndex scan(Path archivePath) throws IOException {
+        var builder = new Builder();
+        var completion = new CompletableFuture<Void>();
+        new UntaringPublisher(archivePath).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(UntaringPublisher.TarEntry item) {
+                builder.add(item.header(), item.dataOffset() - UntaringPublisher.BLOCK_SIZE, item.dataOffset());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completion.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completion.complete(null);
+            }
+        });
+
+        try {
+            completion.join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw e;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads an index previously written with {@link #write(Path)}.
+     */
+    public static TarIndex read(Path indexPath) throws IOException {
+        try (var fc = FileChannel.open(indexPath, READ)) {
+            return readFrom(FileMMapPublisher.map(fc, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Reads an index from the buffer's position, leaving the position after the index.
+     */
+    public static TarIndex readFrom(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES * 3 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a tar index");
+        }
+        var version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported tar index version " + version);
+        }
+
+        var count = buffer.getInt();
+        var entries = new LinkedHashMap<String, IndexEntry>(Math.max(16, (int) (count / 0.75f) + 1));
+        for (int i = 0; i < count; i++) {
+            var headerOffset = buffer.getLong();
+            var dataOffset = buffer.getLong();
+            var size = buffer.getLong();
+            var mtime = buffer.getLong();
+            var name = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(name);
+            var entry = new IndexEntry(new String(name, UTF_8), headerOffset, dataOffset, size, mtime);
+            entries.put(entry.name(), entry);
+        }
+        return new TarIndex(entries);
+    }
+
+    public void write(Path indexPath) throws IOException {
+        var buffer = ByteBuffer.allocateDirect(encodedSize());
+        writeTo(buffer);
+        try (var fc = FileChannel.open(indexPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(ByteBuffer)} will write.
+     */
+    public int encodedSize() {
+        var length = Integer.BYTES * 3;
+        for (var name : entries.keySet()) {
+            length += FIXED_ENTRY_SIZE + name.getBytes(UTF_8).length;
+        }
+        return length;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(entries.size());
+        for (var entry : entries.values()) {
+            var name = entry.name().getBytes(UTF_8);
+            buffer.putLong(entry.headerOffset())
+                    .putLong(entry.dataOffset())
+                    .putLong(entry.size())
+                    .putLong(entry.mtime())
+                    .putShort((short) name.length)
+                    .put(name);
+        }
+    }
+
+    public Optional<IndexEntry> lookup(String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    public Collection<IndexEntry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Maps only the data of the named entry from the archive, the cost is independent of the entry's position in the archive.
+     *
+     * @return read-only buffers covering the entry's data in order, empty if the entry has no data.
+     * @throws IllegalArgumentException if the index has no entry with the given name.
+     */
+    public List<ByteBuffer> map(Path archivePath, String name) throws IOException {
+        var entry = lookup(name).orElseThrow(() -> new IllegalArgumentException("No entry named \"" + name + "\" in index"));
+        if (entry.size() == 0) {
+            return List.of();
+        }
+        try (var fc = FileChannel.open(archivePath, READ)) {
+            return UntaringPublisher.mapRange(fc, entry.dataOffset(), entry.size());
+        }
+    }
+
+    /**
+     * Reads the header block of the named entry, useful for restoring its mode and ownership.
+     */
+    public Header header(Path archivePath, String name) throws IOException {
+        var entry = lookup(name).orElseThrow(() -> new IllegalArgumentException("No entry named \"" + name + "\" in index"));
+        try (var fc = FileChannel.open(archivePath, READ)) {
+            return Header.view(FileMMapPublisher.map(fc, entry.headerOffset(), UntaringPublisher.BLOCK_SIZE));
+        }
+    }
+
+    /**
+     * @param name         the entry's name including any prefix.
+     * @param headerOffset the position of the entry's header block in the archive.
+     * @param dataOffset   the position of the first byte of the entry's data in the archive.
+     * @param size         the size of the entry's data in bytes.
+     * @param mtime        the entry's modification time in seconds since the epoch.
+     */
+    public record IndexEntry(String name, long headerOffset, long dataOffset, long size, long mtime) {
+    }
+
+    /**
+     * Accumulates index entries, when used as the header listener of a {@link TaringPublisher} offsets are derived from the header sizes
+     * since the layout of the archive is fully determined by them.
+     */
+    public static final class Builder implements Consumer<Header> {
+
+        private final Map<String, IndexEntry> entries = new LinkedHashMap<>();
+        private long offset;
+
+        @Override
+        public void accept(Header header) {
+            add(header, offset, offset + UntaringPublisher.BLOCK_SIZE);
+        }
+
+        private void add(Header header, long headerOffset, long dataOffset) {
+            var size = header.parseSize();
+            // later entries with the same name replace earlier ones, as they would when extracting
+            var entry = new IndexEntry(header.parseName(), headerOffset, dataOffset, size, header.parseMtime());
+            entries.remove(entry.name());
+            entries.put(entry.name(), entry);
+            offset = dataOffset + UntaringPublisher.paddedSize(size);
+        }
+
+        public TarIndex build() {
+            return new TarIndex(new LinkedHashMap<>(entries));
+        }
+    }
+}
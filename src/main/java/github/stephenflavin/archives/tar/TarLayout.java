@@ -0,0 +1,162 @@
+package github.stephenflavin.archives.tar;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import github.stephenflavin.archives.EntryWalker;
+import github.stephenflavin.archives.FileMMapPublisher;
+
+/**
+ * The complete layout of a tar archive, computed up front from the headers of the files to tar. Since every entry is a 512 byte header
+ * followed by its data padded to a multiple of 512 bytes, the offset of every entry and the size of the archive are known before any data
+ * is copied.
+ * <p>
+ * Directories are expanded into an entry for themselves followed by their contents, directory entries have no data.
+ */
+public final class TarLayout {
+
+    static final int TRAILER_SIZE = UntaringPublisher.BLOCK_SIZE * 2;
+
+    private final List<Slot> slots;
+    private final long size;
+
+    private TarLayout(List<Slot> slots, long size) {
+        this.slots = slots;
+        this.size = size;
+    }
+
+    public static TarLayout of(Path... paths) throws IOException {
+        var slots = new ArrayList<Slot>(paths.length);
+        long offset = 0;
+        try (var entries = new HeaderPrefetcher(new EntryWalker(paths), new HeaderArena())) {
+            while (entries.hasNext()) {
+                var entry = entries.next();
+                var header = entry.header();
+                var size = header.parseSize();
+                var dataOffset = offset + UntaringPublisher.BLOCK_SIZE;
+                slots.add(new Slot(entry.entryPath().path(), header, offset, dataOffset, size));
+                offset = dataOffset + UntaringPublisher.paddedSize(size);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new TarLayout(List.copyOf(slots), offset + TRAILER_SIZE);
+    }
+
+    public List<Slot> slots() {
+        return slots;
+    }
+
+    /**
+     * @return the size of the archive in bytes, including the two zero blocks which terminate it.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Writes the bytes {@code from} (inclusive) to {@code to} (exclusive) of the archive, only the data of entries overlapping the range
+     * is mapped so the cost is independent of where the range starts.
+     *
+     * @throws IOException if a file has been truncated since the layout was computed.
+     */
+    public void writeRange(WritableByteChannel target, long from, long to) throws IOException {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range %d-%d is outside of the archive of %d bytes".formatted(from, to, size));
+        }
+
+        var position = from;
+        for (int i = slotIndex(from); i < slots.size() && position < to; i++) {
+            var slot = slots.get(i);
+            position = writeBuffer(target, slot.header().getBuffer(), slot.headerOffset(), position, to);
+
+            var dataEnd = slot.dataOffset() + slot.size();
+            if (position < to && position < dataEnd) {
+                var end = Math.min(to, dataEnd);
+                writeData(target, slot.path(), position - slot.dataOffset(), end - position);
+                position = end;
+            }
+
+            var paddingEnd = slot.dataOffset() + UntaringPublisher.paddedSize(slot.size());
+            position = writeZeros(target, position, Math.min(to, paddingEnd));
+        }
+        writeZeros(target, position, to);
+    }
+
+    /**
+     * @return the index of the last slot starting at or before the given offset.
+     */
+    private int slotIndex(long offset) {
+        int low = 0;
+        int high = slots.size();
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            if (slots.get(mid).headerOffset() <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    private static long writeBuffer(WritableByteChannel target, ByteBuffer buffer, long bufferOffset, long position, long to)
+            throws IOException {
+        var end = Math.min(to, bufferOffset + buffer.remaining());
+        if (position >= end) {
+            return position;
+        }
+        writeFully(target, buffer.slice((int) (position - bufferOffset), (int) (end - position)));
+        return end;
+    }
+
+    private static void writeData(WritableByteChannel target, Path path, long fileOffset, long length) throws IOException {
+        try (var fc = FileChannel.open(path, READ)) {
+            if (fc.size() < fileOffset + length) {
+                throw new IOException("%s was truncated since the archive layout was computed".formatted(path));
+            }
+            while (length > 0) {
+                var windowSize = Math.min(length, FileMMapPublisher.MAX_CHUNK_SIZE);
+                var window = FileMMapPublisher.map(fc, fileOffset, windowSize);
+                writeFully(target, window);
+                // written synchronously so the window can be released straight away
+                FileMMapPublisher.unmap(window);
+                fileOffset += windowSize;
+                length -= windowSize;
+            }
+        }
+    }
+
+    private static long writeZeros(WritableByteChannel target, long position, long end) throws IOException {
+        while (position < end) {
+            var length = (int) Math.min(end - position, TaringPublisher.PADDING.capacity());
+            writeFully(target, TaringPublisher.PADDING.slice(0, length));
+            position += length;
+        }
+        return position;
+    }
+
+    private static void writeFully(WritableByteChannel target, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            target.write(src);
+        }
+    }
+
+    /**
+     * @param path         the file the entry is created from.
+     * @param header       the entry's header.
+     * @param headerOffset the position of the header block in the archive.
+     * @param dataOffset   the position of the first byte of the file's data in the archive.
+     * @param size         the size of the file's data in bytes, excluding padding.
+     */
+    public record Slot(Path path, Header header, long headerOffset, long dataOffset, long size) {
+    }
+}
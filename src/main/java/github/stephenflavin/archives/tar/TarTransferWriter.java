@@ -0,0 +1,87 @@
+package github.stephenflavin.archives.tar;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import github.stephenflavin.archives.EntryWalker;
+
+/**
+ * Writes a tar archive to a {@link FileChannel} or {@link SocketChannel} by writing headers and padding from small buffers and moving
+ * file data with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which the JDK implements with
+ * {@code sendfile}/{@code copy_file_range} on Linux so the data never passes through user space or a mapping.
+ * <p>
+ * Socket channels must be in blocking mode, as {@code transferTo} and writes to a non-blocking socket may make no progress, so
+ * {@link #supports(WritableByteChannel)} rejects non-blocking sockets and they're written to by the publisher instead.
+ */
+final class TarTransferWriter {
+
+    private final WritableByteChannel target;
+    private final Consumer<Header> headerListener;
+
+    TarTransferWriter(WritableByteChannel target, Consumer<Header> headerListener) {
+        this.target = target;
+        this.headerListener = headerListener;
+    }
+
+    static boolean supports(WritableByteChannel channel) {
+        return channel instanceof FileChannel || channel instanceof SocketChannel socketChannel && socketChannel.isBlocking();
+    }
+
+    void write(Path... paths) throws IOException {
+        var headerArena = new HeaderArena();
+        try {
+            writeEntries(headerArena, paths);
+        } finally {
+            headerArena.release();
+        }
+    }
+
+    private void writeEntries(HeaderArena headerArena, Path... paths) throws IOException {
+        try (var entries = new HeaderPrefetcher(new EntryWalker(paths), headerArena)) {
+            while (entries.hasNext()) {
+                var entry = entries.next();
+                var header = entry.header();
+                headerListener.accept(header);
+                writeFully(header.getBuffer());
+                if (header.getTypeFlag() != Header.DIRECTORY) {
+                    writeData(entry.entryPath().path(), header.parseSize());
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writeFully(TaringPublisher.PADDING.duplicate());
+    }
+
+    private void writeData(Path path, long size) throws IOException {
+        try (var source = FileChannel.open(path, READ)) {
+            long position = 0;
+            while (position < size) {
+                var transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0 && source.size() <= position) {
+                    throw new IOException("%s was truncated while being archived, expected %dbytes".formatted(path, size));
+                }
+                position += transferred;
+            }
+        }
+
+        var remainder = (int) (size % UntaringPublisher.BLOCK_SIZE);
+        if (remainder != 0) {
+            writeFully(TaringPublisher.PADDING.slice(0, UntaringPublisher.BLOCK_SIZE - remainder));
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            target.write(src);
+        }
+    }
+}
@@ -3,79 +3,352 @@ package github.stephenflavin.archives.tar;
 import static java.lang.System.Logger.Level.DEBUG;
 import static java.lang.System.Logger.Level.ERROR;
 import static java.lang.System.Logger.Level.INFO;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Flow;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Stream;
 
+import github.stephenflavin.archives.AsyncFileChannelSink;
+import github.stephenflavin.archives.DirectIoChannel;
+import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.GatheringBatchProcessor;
+import github.stephenflavin.archives.MulticastProcessor;
+import github.stephenflavin.archives.gzip.GzipBlockIndex;
+import github.stephenflavin.archives.gzip.ParallelGzipProcessor;
+
 public class TarUtility {
 
     private static final System.Logger logger = System.getLogger(TarUtility.class.toString());
+    private static final long PARALLEL_REGION_SIZE = 64 * 1024 * 1024; // 64m
+    private static final boolean USE_TRANSFER_TO;
     private static ExecutorService executorService = null;
 
+    static {
+        USE_TRANSFER_TO = Stream.of(System.getProperty("useTransferTo"), System.getenv("USE_TRANSFER_TO"))
+            .filter(Objects::nonNull)
+            .map(Boolean::parseBoolean)
+            .findFirst()
+            .orElse(true);
+    }
+
     public static CompletableFuture<Path> createTarFile(Path archivePath, List<Path> filesToTar) throws FileNotFoundException {
         return createTarFile(archivePath, filesToTar.toArray(Path[]::new));
     }
 
     public static CompletableFuture<Path> createTarFile(Path archivePath, Path... filesToTar) throws FileNotFoundException {
+        return createTarFile(archivePath, header -> {}, filesToTar);
+    }
+
+    private static CompletableFuture<Path> createTarFile(Path archivePath,
+                                                         Consumer<Header> headerListener,
+                                                         Path... filesToTar) throws FileNotFoundException {
         var randomAccessFile = new RandomAccessFile(archivePath.toString(), "rw");
         var channel = randomAccessFile.getChannel();
 
-        return createTar(src -> {
+        return closeOnCompletion(createTar(channel, headerListener, filesToTar), randomAccessFile, archivePath);
+    }
+
+    private static CompletableFuture<Path> closeOnCompletion(CompletableFuture<?> future, Closeable closeable, Path archivePath) {
+        return future.handle((res, ex) -> {
+            IOException closeFailure = null;
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                closeFailure = e;
+            }
+            if (ex != null) {
+                if (closeFailure != null) {
+                    ex.addSuppressed(closeFailure);
+                }
+
+                if (ex instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw new CompletionException(ex);
+            }
+            if (closeFailure != null) {
+                throw new CompletionException(closeFailure);
+            }
+            return archivePath;
+        });
+    }
+
+    /**
+     * Creates a tar file alongside a {@link TarIndex} sidecar file which is built from the headers as they are written.
+     */
+    public static CompletableFuture<TarIndex> createIndexedTarFile(Path archivePath,
+                                                                  Path indexPath,
+                                                                  Path... filesToTar) throws FileNotFoundException {
+        var indexBuilder = new TarIndex.Builder();
+        return createTarFile(archivePath, indexBuilder, filesToTar)
+                .thenApply(path -> {
+                    var index = indexBuilder.build();
                     try {
-                        channel.write(src);
+                        index.write(indexPath);
                     } catch (IOException e) {
                         throw new UncheckedIOException(e);
                     }
-                },
-                filesToTar)
-                .handle((res, ex) -> {
-                    IOException closeFailure = null;
+                    return index;
+                });
+    }
+
+    /**
+     * Creates a tar file by computing its {@link TarLayout} up front, presizing the file and then copying entries concurrently with
+     * positional writes on a pool with a thread per available processor. Files larger than {@value #PARALLEL_REGION_SIZE} bytes are split
+     * into multiple regions so they are also copied concurrently.
+     */
+    public static CompletableFuture<Path> createTarFileConcurrently(Path archivePath, Path... filesToTar) {
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                r -> new Thread(r, "tar-utility-io-thread-" + threadCount.incrementAndGet()));
+        return createTarFileConcurrently(archivePath, executor, filesToTar)
+                .whenComplete((res, ex) -> executor.shutdown());
+    }
+
+    public static CompletableFuture<Path> createTarFileConcurrently(Path archivePath, Executor executor, Path... filesToTar) {
+        final TarLayout layout;
+        final FileChannel channel;
+        try {
+            layout = TarLayout.of(filesToTar);
+            channel = FileChannel.open(archivePath, CREATE, WRITE, TRUNCATE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        var writes = new ArrayList<CompletableFuture<Void>>();
+        try {
+            // the padding and trailer are never written, extending the file fills them with zeros
+            channel.write(ByteBuffer.allocate(1), layout.size() - 1);
+            for (var slot : layout.slots()) {
+                writes.add(CompletableFuture.runAsync(() -> writeFully(channel, slot.header().getBuffer(), slot.headerOffset()), executor));
+                for (long offset = 0; offset < slot.size(); offset += PARALLEL_REGION_SIZE) {
+                    var regionOffset = offset;
+                    var regionSize = Math.min(PARALLEL_REGION_SIZE, slot.size() - offset);
+                    writes.add(CompletableFuture.runAsync(() -> copyRegion(slot, regionOffset, regionSize, channel), executor));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return closeOnCompletion(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)), channel, archivePath);
+    }
+
+    private static void copyRegion(TarLayout.Slot slot, long regionOffset, long regionSize, FileChannel target) {
+        try (var source = FileChannel.open(slot.path(), READ)) {
+            writeFully(target, FileMMapPublisher.map(source, regionOffset, regionSize), slot.dataOffset() + regionOffset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) {
+        try {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a tar file with direct I/O, bypassing the page cache so writing very large archives doesn't evict the working set of
+     * everything else running on the host. Entries are staged into block aligned buffers, see {@link DirectIoChannel}.
+     *
+     * @throws IOException if the archive's file system does not support direct I/O.
+     */
+    public static CompletableFuture<Path> createTarFileDirect(Path archivePath, Path... filesToTar) throws IOException {
+        var channel = DirectIoChannel.open(archivePath);
+        return closeOnCompletion(createTar(channel, header -> {}, filesToTar), channel, archivePath);
+    }
+
+    /**
+     * Creates a tar file by writing the buffers published by a {@link TaringPublisher} through an {@link AsynchronousFileChannel} with up
+     * to {@value AsyncFileChannelSink#DEFAULT_MAX_IN_FLIGHT} positional writes in flight, keeping the device queue full on fast storage.
+     */
+    public static CompletableFuture<Path> createTarFileAsynchronously(Path archivePath, Path... filesToTar) throws IOException {
+        return createTarFileAsynchronously(archivePath, AsyncFileChannelSink.DEFAULT_MAX_IN_FLIGHT, filesToTar);
+    }
+
+    public static CompletableFuture<Path> createTarFileAsynchronously(Path archivePath,
+                                                                      int maxInFlight,
+                                                                      Path... filesToTar) throws IOException {
+        var channel = AsynchronousFileChannel.open(archivePath, CREATE, WRITE, TRUNCATE_EXISTING);
+        var sink = new AsyncFileChannelSink(channel, maxInFlight);
+        try {
+            new TaringPublisher(filesToTar).subscribe(sink);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return closeOnCompletion(sink.completion(), channel, archivePath);
+    }
+
+    /**
+     * Creates a gzip compressed tar file, compressing blocks of the archive concurrently with a {@link ParallelGzipProcessor}.
+     */
+    public static CompletableFuture<Path> createTarGzFile(Path archivePath, Path... filesToTar) throws IOException {
+        var channel = FileChannel.open(archivePath, CREATE, WRITE, TRUNCATE_EXISTING);
+        return closeOnCompletion(createTarGzFile(channel, filesToTar), channel, archivePath);
+    }
+
+    public static CompletableFuture<Path> createTarGzFile(Path archivePath, List<Path> filesToTar) throws IOException {
+        return createTarGzFile(archivePath, filesToTar.toArray(Path[]::new));
+    }
+
+    public static CompletableFuture<Void> createTarGzFile(WritableByteChannel byteChannel, Path... filesToTar) {
+        return createTarGz(byteChannel, new ParallelGzipProcessor(), header -> {}, filesToTar);
+    }
+
+    /**
+     * Creates a tar.gz file made of independent gzip members, each covering at most
+     * {@value ParallelGzipProcessor#DEFAULT_SEEKABLE_BLOCK_SIZE} bytes of the tar, alongside an index of the entries and members. The
+     * archive remains readable by any gzip decompressor while {@link SeekableTarGz} can read a single entry by inflating only the members
+     * covering it.
+     */
+    public static CompletableFuture<SeekableTarGz> createSeekableTarGzFile(Path archivePath,
+                                                                          Path indexPath,
+                                                                          Path... filesToTar) throws IOException {
+        var tarIndexBuilder = new TarIndex.Builder();
+        var blockIndexBuilder = new GzipBlockIndex.Builder();
+        var channel = FileChannel.open(archivePath, CREATE, WRITE, TRUNCATE_EXISTING);
+        var future = createTarGz(channel, ParallelGzipProcessor.seekable(blockIndexBuilder), tarIndexBuilder, filesToTar);
+        return closeOnCompletion(future, channel, archivePath)
+                .thenApply(path -> {
+                    var archive = new SeekableTarGz(path, tarIndexBuilder.build(), blockIndexBuilder.build());
                     try {
-                        randomAccessFile.close();
+                        archive.writeIndex(indexPath);
                     } catch (IOException e) {
-                        closeFailure = e;
+                        throw new UncheckedIOException(e);
                     }
-                    if (ex != null) {
-                        if (closeFailure != null) {
-                            ex.addSuppressed(closeFailure);
-                        }
+                    return archive;
+                });
+    }
 
-                        if (ex instanceof RuntimeException re) {
-                            throw re;
+    private static CompletableFuture<Void> createTarGz(WritableByteChannel byteChannel,
+                                                       ParallelGzipProcessor gzipProcessor,
+                                                       Consumer<Header> headerListener,
+                                                       Path... filesToTar) {
+        new TaringPublisher(headerListener, filesToTar).subscribe(gzipProcessor);
+        return consume(gzipProcessor,
+                src -> {
+                    try {
+                        while (src.hasRemaining()) {
+                            byteChannel.write(src);
                         }
-                        throw new CompletionException(ex);
-                    }
-                    if (closeFailure != null) {
-                        throw new CompletionException(closeFailure);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                    return archivePath;
-                });
+                },
+                ByteBuffer::remaining);
     }
 
     public static CompletableFuture<Void> createTarFile(WritableByteChannel byteChannel, List<Path> filesToTar) throws FileNotFoundException {
         return createTarFile(byteChannel, filesToTar.toArray(Path[]::new));
     }
 
+    /**
+     * When the channel is a {@link FileChannel} or a blocking {@link java.nio.channels.SocketChannel} file data is moved with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} rather than being mapped, this can be disabled by setting the
+     * {@code useTransferTo} system property or {@code USE_TRANSFER_TO} environment variable to {@code false}.
+     */
     public static CompletableFuture<Void> createTarFile(WritableByteChannel byteChannel, Path... filesToTar) {
+        return createTar(byteChannel, header -> {}, executor(), filesToTar);
+    }
+
+    /**
+     * @param executor writes the tar, e.g. {@code Runnable::run} to write it on the calling thread rather than the shared io thread, so
+     *                 concurrent callers such as {@link TarHttpHandler} don't wait on each other.
+     */
+    static CompletableFuture<Void> createTarFile(WritableByteChannel byteChannel, Executor executor, Path... filesToTar) {
+        return createTar(byteChannel, header -> {}, executor, filesToTar);
+    }
+
+    /**
+     * Writes the same tar to every channel while only building it once, each input file is read a single time and its buffers are shared
+     * by all channels. Writing runs at the pace of the slowest channel once it is {@value MulticastProcessor#DEFAULT_MAX_LAG} buffers
+     * behind the fastest.
+     */
+    public static CompletableFuture<Void> createTarFiles(List<? extends WritableByteChannel> byteChannels, Path... filesToTar) {
+        var multicastProcessor = new MulticastProcessor(byteChannels.size());
+        var futures = byteChannels.stream()
+                .map(byteChannel -> consume(multicastProcessor,
+                        src -> {
+                            try {
+                                while (src.hasRemaining()) {
+                                    byteChannel.write(src);
+                                }
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        },
+                        ByteBuffer::remaining))
+                .toArray(CompletableFuture[]::new);
+        new TaringPublisher(filesToTar).subscribe(multicastProcessor);
+        return CompletableFuture.allOf(futures);
+    }
+
+    private static CompletableFuture<Void> createTar(WritableByteChannel byteChannel,
+                                                     Consumer<Header> headerListener,
+                                                     Path... filesToTar) {
+        return createTar(byteChannel, headerListener, executor(), filesToTar);
+    }
+
+    private static CompletableFuture<Void> createTar(WritableByteChannel byteChannel,
+                                                     Consumer<Header> headerListener,
+                                                     Executor executor,
+                                                     Path... filesToTar) {
+        if (USE_TRANSFER_TO && TarTransferWriter.supports(byteChannel)) {
+            logger.log(DEBUG, "Using transferTo to write tar");
+            var writer = new TarTransferWriter(byteChannel, headerListener);
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    writer.write(filesToTar);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        }
+
+        if (byteChannel instanceof GatheringByteChannel gatheringByteChannel) {
+            return createTar(gatheringByteChannel, headerListener, executor, filesToTar);
+        }
+
         return createTar(src -> {
                     try {
                         byteChannel.write(src);
@@ -83,31 +356,91 @@ public class TarUtility {
                         throw new UncheckedIOException(e);
                     }
                 },
+                headerListener,
+                executor,
                 filesToTar);
     }
 
-    private static CompletableFuture<Void> createTar(Consumer<ByteBuffer> bufferConsumer, Path... filesToTar) {
-        var taringPublisher = new TaringPublisher(filesToTar);
+    private static CompletableFuture<Void> createTar(Consumer<ByteBuffer> bufferConsumer,
+                                                     Consumer<Header> headerListener,
+                                                     Path... filesToTar) {
+        return createTar(bufferConsumer, headerListener, executor(), filesToTar);
+    }
+
+    private static CompletableFuture<Void> createTar(Consumer<ByteBuffer> bufferConsumer,
+                                                     Consumer<Header> headerListener,
+                                                     Executor executor,
+                                                     Path... filesToTar) {
+        // buffers are written before onNext returns so mappings can be released immediately rather than accumulating until a GC
+        var publisher = new TaringPublisher(headerListener, HeaderPrefetcher.DEFAULT_LOOKAHEAD, null, true, filesToTar);
+        return consume(publisher, bufferConsumer, ByteBuffer::remaining, executor);
+    }
+
+    /**
+     * Batches the buffers published by a {@link TaringPublisher} so that a header, its data and padding are usually written to the
+     * channel with a single gathering write.
+     */
+    private static CompletableFuture<Void> createTar(GatheringByteChannel byteChannel,
+                                                     Consumer<Header> headerListener,
+                                                     Executor executor,
+                                                     Path... filesToTar) {
+        var batchingProcessor = new GatheringBatchProcessor();
+        new TaringPublisher(headerListener, filesToTar).subscribe(batchingProcessor);
+        return consume(batchingProcessor,
+                batch -> {
+                    try {
+                        var last = batch[batch.length - 1];
+                        while (last.hasRemaining()) {
+                            byteChannel.write(batch);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                },
+                batch -> Arrays.stream(batch).mapToLong(ByteBuffer::remaining).sum(),
+                executor);
+    }
 
-        var future = new AtomicReference<CompletableFuture<Void>>();
-        var subscriber = new Flow.Subscriber<ByteBuffer>() {
+    private static <T> CompletableFuture<Void> consume(Flow.Publisher<T> publisher, Consumer<T> consumer, ToLongFunction<T> sizeOf) {
+        return consume(publisher, consumer, sizeOf, executor());
+    }
+
+    /**
+     * @param executor requests from the publisher, so runs the publishing of publishers which publish synchronously.
+     */
+    private static <T> CompletableFuture<Void> consume(Flow.Publisher<T> publisher,
+                                                       Consumer<T> consumer,
+                                                       ToLongFunction<T> sizeOf,
+                                                       Executor executor) {
+        // completed by the subscriber rather than when the initial request returns as publishers may deliver asynchronously
+        var future = new CompletableFuture<Void>();
+        var subscriber = new Flow.Subscriber<T>() {
             private final Semaphore semaphore = new Semaphore(1);
 
             @Override
             public void onSubscribe(Flow.Subscription subscription) {
-                logger.log(DEBUG, "Subscribed to TaringPublisher");
-                future.set(CompletableFuture.runAsync(() -> subscription.request(Long.MAX_VALUE), executor()));
+                logger.log(DEBUG, "Subscribed to {0}", publisher.getClass().getSimpleName());
+                CompletableFuture.runAsync(() -> subscription.request(Long.MAX_VALUE), executor)
+                        .exceptionally(ex -> {
+                            future.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+                            return null;
+                        });
             }
 
             @Override
-            public void onNext(ByteBuffer item) {
-                logger.log(DEBUG, "received buffer of size: {0}", item.remaining());
+            public void onNext(T item) {
+                if (logger.isLoggable(DEBUG)) {
+                    logger.log(DEBUG, "received buffer of size: {0}", sizeOf.applyAsLong(item));
+                }
                 try {
                     semaphore.acquire();
-                    bufferConsumer.accept(item);
+                    consumer.accept(item);
                 } catch (InterruptedException e) {
-                    future.get().completeExceptionally(e);
+                    future.completeExceptionally(e);
                     Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    throw e;
                 } finally {
                     semaphore.release();
                 }
@@ -116,26 +449,26 @@ public class TarUtility {
             @Override
             public void onError(Throwable throwable) {
                 logger.log(ERROR, "Exception while processing tar file", throwable);
-                future.get().completeExceptionally(throwable);
+                future.completeExceptionally(throwable);
             }
 
             @Override
             public void onComplete() {
                 try {
                     semaphore.acquire();
-                    logger.log(DEBUG, "TaringPublisher completed");
-                    future.get().complete(null);
+                    logger.log(DEBUG, "{0} completed", publisher.getClass().getSimpleName());
+                    future.complete(null);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
             }
         };
 
-        taringPublisher.subscribe(subscriber);
-        return future.get();
+        publisher.subscribe(subscriber);
+        return future;
     }
 
-    private static ExecutorService executor() {
+    private static synchronized ExecutorService executor() {
         if (executorService == null) {
             executorService = Executors.newSingleThreadExecutor(r -> new Thread(r, "tar-utility-io-thread"));
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -148,51 +481,32 @@ public class TarUtility {
         return executorService;
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         var archivePath = Path.of(args[0]);
         var recurse = args[1].equals("-r") || args[1].equals("--recurse");
         var skip = recurse ? 2 : 1;
 
-        var size = new AtomicLong();
+        // directories are walked lazily while the archive is written rather than being expanded up front
         var filesToTar = Arrays.stream(args)
                 .skip(skip)
                 .map(Path::of)
-                .flatMap(path -> {
-                    if (path.toFile().isDirectory()) {
-                        if (recurse) {
-                            return extractFilePathsFromDir(path);
-                        }
+                .peek(path -> {
+                    if (!recurse && path.toFile().isDirectory()) {
                         throw new IllegalArgumentException("Provided path \"" + path + "\" is a directory, to extract directory files pass"
                                 + " -r or --recurse as the second argument.");
                     }
-                    return Stream.of(path);
-                })
-                .peek(path -> {
-                    try {
-                        size.addAndGet(Files.size(path));
-                    } catch (IOException e) {
-                        throw   new UncheckedIOException(e);
-                    }
                 })
                 .toArray(Path[]::new);
 
-        logger.log(INFO, "Starting to create tarball for {0}bytes at {1}", size.get(), archivePath);
+        logger.log(INFO, "Starting to create tarball at {0}", archivePath);
         var started = Clock.systemUTC().millis();
         createTarFile(archivePath, filesToTar).join();
         var msToCompletion = Clock.systemUTC().millis() - started;
         logger.log(INFO,
                 "Completed creating tarball in {0} seconds, achieved {1}bytes/sec",
                 msToCompletion / 1000d,
-                (size.get() / (double) msToCompletion) * 1000);
+                (Files.size(archivePath) / (double) msToCompletion) * 1000);
         executor().shutdownNow();
     }
 
-    private static Stream<? extends Path> extractFilePathsFromDir(Path path) {
-        try {
-            return Files.find(path, Integer.MAX_VALUE, (p, bfa) -> bfa.isRegularFile());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-    }
-
 }
@@ -1,189 +1,461 @@
 package github.stephenflavin.archives.tar;
 
+import static java.nio.file.StandardOpenOption.READ;
+
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import github.stephenflavin.archives.EntryWalker;
 import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.ReleasingSubscriber;
 import github.stephenflavin.archives.tar.Entry;
 
+/**
+ * Publishes a tar archive of the given files and directories as a stream of {@link ByteBuffer}s. Large files are published as mapped
+ * buffers straight from the page cache, while entries smaller than {@value #DEFAULT_SMALL_FILE_THRESHOLD} bytes, and directories, are read
+ * with {@link FileChannel#read(ByteBuffer)} and coalesced together with their headers and padding into buffers of up to
+ * {@value #COALESCING_BUFFER_SIZE} bytes, since mapping a tiny file costs far more than copying it. The threshold can be set with the
+ * {@code smallFileThreshold} system property or {@code SMALL_FILE_THRESHOLD} environment variable, {@code 0} maps every file.
+ * <p>
+ * Coalescing buffers are reused once the subscriber is done with them, either as soon as {@code onNext} returns when
+ * {@code releaseAfterOnNext} is set or once a {@link ReleasingSubscriber} releases them. Otherwise each buffer is sized to its batch and
+ * left to the garbage collector.
+ */
 public class TaringPublisher implements Flow.Publisher<ByteBuffer> {
 
+    public static final int DEFAULT_SMALL_FILE_THRESHOLD = 16 * 1024; // 16k
+
     private static final int CHUNK_SIZE = 512;
-    private static final ByteBuffer PADDING = ByteBuffer.allocateDirect(CHUNK_SIZE * 2).asReadOnlyBuffer();
+    private static final int COALESCING_BUFFER_SIZE = 1024 * 1024; // 1m
+    private static final long SMALL_FILE_THRESHOLD;
+    static final ByteBuffer PADDING = ByteBuffer.allocateDirect(CHUNK_SIZE * 2).asReadOnlyBuffer();
+
+    static {
+        SMALL_FILE_THRESHOLD = Stream.of(System.getProperty("smallFileThreshold"), System.getenv("SMALL_FILE_THRESHOLD"))
+            .filter(Objects::nonNull)
+            .map(Long::parseLong)
+            .findFirst()
+            .orElse((long) DEFAULT_SMALL_FILE_THRESHOLD);
+    }
 
     private final Path[] paths;
+    private final Consumer<Header> headerListener;
+    private final int prefetch;
+    private final Executor prefetchExecutor;
+    private final boolean releaseAfterOnNext;
 
     public TaringPublisher(Path... paths) {
+        this(header -> {}, paths);
+    }
+
+    /**
+     * @param headerListener notified of each {@link Header} in archive order just before it is published, e.g. to build a
+     *                       {@link TarIndex} while the archive is written.
+     * @param paths          the files to tar.
+     */
+    public TaringPublisher(Consumer<Header> headerListener, Path... paths) {
+        this(headerListener, HeaderPrefetcher.DEFAULT_LOOKAHEAD, null, paths);
+    }
+
+    /**
+     * @param headerListener   notified of each {@link Header} in archive order just before it is published.
+     * @param prefetch         the number of entries ahead of the one being published to read attributes and encode headers for, {@code 0}
+     *                         disables prefetching.
+     * @param prefetchExecutor runs the attribute reads, {@code null} uses a shared pool of daemon threads.
+     * @param paths            the files and directories to tar.
+     */
+    public TaringPublisher(Consumer<Header> headerListener, int prefetch, Executor prefetchExecutor, Path... paths) {
+        this(headerListener, prefetch, prefetchExecutor, false, paths);
+    }
+
+    /**
+     * @param headerListener     notified of each {@link Header} in archive order just before it is published.
+     * @param prefetch           the number of entries ahead of the one being published to read attributes and encode headers for,
+     *                           {@code 0} disables prefetching.
+     * @param prefetchExecutor   runs the attribute reads, {@code null} uses a shared pool of daemon threads.
+     * @param releaseAfterOnNext whether buffers are released as soon as {@link Flow.Subscriber#onNext(Object)} returns, unmapping file
+     *                           data rather than waiting for the GC and reusing the buffer small files are coalesced into. Only safe
+     *                           when the subscriber has finished with each buffer by then, e.g. it writes synchronously, as accessing an
+     *                           unmapped buffer crashes the JVM.
+     * @param paths              the files and directories to tar.
+     */
+    public TaringPublisher(Consumer<Header> headerListener,
+                           int prefetch,
+                           Executor prefetchExecutor,
+                           boolean releaseAfterOnNext,
+                           Path... paths) {
         for (Path path : paths) {
-            if (path.toFile().isDirectory()) {
-                throw new UnsupportedOperationException("Directory taring is unsupported");
-            }
             if (!Files.exists(path)) {
                 throw new IllegalArgumentException("File does not exist: " + path);
             }
         }
         this.paths = paths;
+        this.headerListener = headerListener;
+        this.prefetch = prefetch;
+        this.prefetchExecutor = prefetchExecutor;
+        this.releaseAfterOnNext = releaseAfterOnNext;
     }
 
     @Override
     public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
         try {
-            subscriber.onSubscribe(new TarBallSubscription(subscriber, paths));
+            var subscription = new TarBallSubscription(subscriber, headerListener, prefetch, prefetchExecutor, releaseAfterOnNext,
+                    subscriber instanceof ReleasingSubscriber, paths);
+            if (subscriber instanceof ReleasingSubscriber releasingSubscriber) {
+                releasingSubscriber.releaseTo(subscription::release);
+            }
+            subscriber.onSubscribe(subscription);
         } catch (Throwable ex) {
             subscriber.onError(ex);
         }
     }
 
+    /**
+     * A trampolined state machine, demand is accumulated in an atomic counter and whichever thread increments the work counter from zero
+     * drains entries until demand is exhausted while signals arriving concurrently or re-entrantly, e.g. a request from within
+     * {@link Flow.Subscriber#onNext(Object)}, only record that another pass is needed. This keeps the stack depth constant regardless of
+     * the number of entries and means {@link #request(long)} never blocks, as required by
+     * <a href="https://github.com/reactive-streams/reactive-streams-jvm#3-subscription-code">§3.3 and §3.4</a>.
+     */
     private static class TarBallSubscription implements Flow.Subscription {
 
         private final Flow.Subscriber<? super ByteBuffer> subscriber;
-        private final Path[] paths;
-        private final int lastIndex;
-        private final ArrayBlockingQueue<ByteBuffer> pendingBuffers;
-
-        private int remaining;
+        private final Consumer<Header> headerListener;
+        private final HeaderPrefetcher entries;
+        private final ArrayDeque<ByteBuffer> pendingBuffers = new ArrayDeque<>(3);
+        private final HeaderArena headerArena = new HeaderArena();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final boolean releaseAfterOnNext;
+        // coalescing buffers published to a releasing subscriber and those it has released, null otherwise
+        private final Set<ByteBuffer> publishedBuffers;
+        private final ConcurrentLinkedQueue<ByteBuffer> releasedBuffers;
+
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // only accessed while draining
+        private boolean remaining;
+        private boolean trailerQueued;
+        private boolean done;
         private ForwardingFileMMapSubscription fileSubscription;
+        private HeaderPrefetcher.PrefetchedEntry deferredEntry;
+        private ByteBuffer coalescingBuffer;
 
         private TarBallSubscription(Flow.Subscriber<? super ByteBuffer> subscriber,
+                                    Consumer<Header> headerListener,
+                                    int prefetch,
+                                    Executor prefetchExecutor,
+                                    boolean releaseAfterOnNext,
+                                    boolean recycleBuffers,
                                     Path... paths) {
             this.subscriber = subscriber;
-            this.paths = paths;
-            this.lastIndex = paths.length - 1;
-            this.pendingBuffers = new ArrayBlockingQueue<>(3);
+            this.releaseAfterOnNext = releaseAfterOnNext;
+            this.publishedBuffers = recycleBuffers ? Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>())) : null;
+            this.releasedBuffers = recycleBuffers ? new ConcurrentLinkedQueue<>() : null;
+            this.headerListener = headerListener;
+            this.entries = new HeaderPrefetcher(new EntryWalker(paths), headerArena, prefetch, prefetchExecutor);
 
-            this.remaining = paths.length;
+            this.remaining = entries.hasNext();
         }
 
         @Override
-        public synchronized void request(long n) {
-            if (n < 0) {
-                subscriber.onError(new IllegalArgumentException("§3.9: non-positive requests are not allowed!"));
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("§3.9: non-positive requests are not allowed!");
+            } else {
+                demand.getAndUpdate(current -> {
+                    var sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
             }
-            if (n == 0) {
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
                 return;
             }
 
-            var requested = n;
+            var missed = 1;
+            do {
+                while (!done && step()) {
+                    // keep publishing until demand or entries are exhausted
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
 
-            if (fileSubscription == null && remaining > 0) {
+        /**
+         * @return {@code true} if progress was made and another step may be taken.
+         */
+        private boolean step() {
+            if (cancelled) {
+                terminate(null, false);
+                return false;
+            }
+            if (error != null) {
+                terminate(error, true);
+                return false;
+            }
+            if (demand.get() == 0) {
+                return false;
+            }
+
+            var buffer = pendingBuffers.poll();
+            if (buffer != null) {
+                produced(1);
+                subscriber.onNext(buffer);
+                return true;
+            }
+
+            if (fileSubscription != null) {
+                // file chunks are published synchronously, reducing demand by the number of chunks in each buffer
+                fileSubscription.request(demand.get());
+                return true;
+            }
+
+            if (remaining) {
                 try {
-                    remaining--;
-                    var path = paths[transpose((remaining))];
-                    var entry = Entry.from(path);
-
-                    pendingBuffers.add(entry.header().getBuffer());
-
-                    fileSubscription = new ForwardingFileMMapSubscription(subscriber,
-                            bb -> {
-                                if (bb != null) {
-                                    int requiredPadding = CHUNK_SIZE - (bb.capacity() % CHUNK_SIZE);
-                                    pendingBuffers.add(PADDING.slice(0, requiredPadding));
-                                }
-                                fileSubscription = null;
-                            });
-
-                    entry.fileMMapPublisher().subscribe(fileSubscription);
-                } catch (IOException e) {
-                    subscriber.onError(e);
+                    nextEntry();
+                } catch (RuntimeException e) {
+                    // entries are walked and encoded lazily, so unreadable files and headers which can't be encoded fail here
+                    terminate(e, true);
+                    return false;
                 }
+                return true;
             }
 
-            if (!pendingBuffers.isEmpty()) {
-                while (requested > 0 && !pendingBuffers.isEmpty()) {
-                    subscriber.onNext(pendingBuffers.poll());
-                    requested--;
-                }
+            if (!trailerQueued) {
+                trailerQueued = true;
+                pendingBuffers.add(PADDING.duplicate());
+                return true;
             }
 
-            if (requested > 0) {
-                if (fileSubscription != null) {
-                    requested = fileSubscription.request(requested);
-                    if (fileSubscription == null && requested > 0) {
-                        // recurse until all paths are published or requested is reduced to 0
-                        request(requested);
-                        return;
-                    }
-                }
-                if (remaining > 0) {
-                    request(requested);
-                    return;
-                }
+            terminate(null, true);
+            return false;
+        }
+
+        private void nextEntry() {
+            var prefetchedEntry = takeEntry();
+            if (isSmall(prefetchedEntry.header())) {
+                coalesce(prefetchedEntry);
+                return;
             }
 
-            if (remaining == 0) {
-                if (requested > 0) {
-                    subscriber.onNext(PADDING);
-                } else {
-                    pendingBuffers.add(PADDING);
-                }
+            var entry = Entry.from(prefetchedEntry, releaseAfterOnNext);
+            headerListener.accept(entry.header());
 
-                if (pendingBuffers.isEmpty()) {
-                    subscriber.onComplete();
-                }
+            pendingBuffers.add(entry.header().getBuffer());
+
+            // directories have no data to publish
+            if (entry.fileMMapPublisher() != null) {
+                fileSubscription = new ForwardingFileMMapSubscription();
+                entry.fileMMapPublisher().subscribe(fileSubscription);
             }
         }
 
-        private int transpose(int i) {
-            return lastIndex - i;
+        private HeaderPrefetcher.PrefetchedEntry takeEntry() {
+            if (deferredEntry != null) {
+                var entry = deferredEntry;
+                deferredEntry = null;
+                remaining = entries.hasNext();
+                return entry;
+            }
+            var entry = entries.next();
+            remaining = entries.hasNext();
+            return entry;
         }
 
-        @Override
-        public void cancel() {
-            remaining = 0;
-            subscriber.onComplete();
+        private static boolean isSmall(Header header) {
+            if (header.getTypeFlag() == Header.DIRECTORY) {
+                return true;
+            }
+            var size = header.parseSize();
+            return size < SMALL_FILE_THRESHOLD && UntaringPublisher.BLOCK_SIZE + UntaringPublisher.paddedSize(size) <= COALESCING_BUFFER_SIZE;
         }
-    }
 
-    private static class ForwardingFileMMapSubscription implements Flow.Subscriber<FileMMapPublisher.FileChunk> {
+        /**
+         * Reads consecutive small entries into a single buffer along with their headers and padding, until it is full or a large entry
+         * is reached which is deferred to be published on its own.
+         */
+        private void coalesce(HeaderPrefetcher.PrefetchedEntry first) {
+            var batch = new ArrayList<HeaderPrefetcher.PrefetchedEntry>();
+            var size = 0;
+            var entry = first;
+            while (true) {
+                batch.add(entry);
+                size += coalescedSize(entry.header());
+
+                if (!remaining) {
+                    break;
+                }
+                var next = takeEntry();
+                if (!isSmall(next.header()) || size + coalescedSize(next.header()) > COALESCING_BUFFER_SIZE) {
+                    deferredEntry = next;
+                    remaining = true;
+                    break;
+                }
+                entry = next;
+            }
+
+            var buffer = coalescingBuffer(size);
+            for (var batchEntry : batch) {
+                var header = batchEntry.header();
+                headerListener.accept(header);
+                buffer.put(header.getBuffer().duplicate());
+                if (header.getTypeFlag() != Header.DIRECTORY) {
+                    read(batchEntry.entryPath().path(), header.parseSize(), buffer);
+                }
+            }
+            pendingBuffers.add(buffer.flip());
+        }
 
-        private final Flow.Subscriber<? super ByteBuffer> delegate;
-        private final Consumer<ByteBuffer> onComplete;
-        private Flow.Subscription fileSubscription;
-        private ByteBuffer lastChunk;
-        private long requestRemaining;
+        private static int coalescedSize(Header header) {
+            var size = header.getTypeFlag() == Header.DIRECTORY ? 0 : header.parseSize();
+            return (int) (UntaringPublisher.BLOCK_SIZE + UntaringPublisher.paddedSize(size));
+        }
+
+        private ByteBuffer coalescingBuffer(int size) {
+            if (releaseAfterOnNext) {
+                // the previous buffer has been passed to onNext, which has returned
+                if (coalescingBuffer == null) {
+                    coalescingBuffer = ByteBuffer.allocateDirect(COALESCING_BUFFER_SIZE);
+                }
+                return coalescingBuffer.clear();
+            }
+            if (publishedBuffers != null) {
+                var buffer = releasedBuffers.poll();
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(COALESCING_BUFFER_SIZE);
+                }
+                publishedBuffers.add(buffer);
+                return buffer.clear();
+            }
+            // nothing signals when the subscriber is done with the buffer so it's left to the GC
+            return ByteBuffer.allocateDirect(size);
+        }
 
         /**
-         * @param delegate   the subscriber to send the {@link FileMMapPublisher.FileChunk} buffer to.
-         * @param onComplete a method that is run when {@link Flow.Subscriber#onComplete()} is called which accepts the last published
-         *                   buffer.
+         * Called by a {@link ReleasingSubscriber} with each buffer it is done with, coalescing buffers are reused for later batches.
          */
-        private ForwardingFileMMapSubscription(Flow.Subscriber<? super ByteBuffer> delegate,
-                                               Consumer<ByteBuffer> onComplete) {
-            this.delegate = delegate;
-            this.onComplete = onComplete;
+        private void release(ByteBuffer buffer) {
+            if (publishedBuffers.remove(buffer)) {
+                releasedBuffers.offer(buffer);
+            }
         }
 
-        @Override
-        public void onSubscribe(Flow.Subscription subscription) {
-            fileSubscription = subscription;
-        }
+        private static void read(Path path, long size, ByteBuffer buffer) {
+            var limit = buffer.limit();
+            try (var fc = FileChannel.open(path, READ)) {
+                buffer.limit(buffer.position() + (int) size);
+                while (buffer.hasRemaining()) {
+                    if (fc.read(buffer) < 0) {
+                        throw new IOException("%s was truncated while being archived, expected %dbytes".formatted(path, size));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                buffer.limit(limit);
+            }
 
-        public long request(long n) {
-            requestRemaining = n;
-            fileSubscription.request(requestRemaining);
-            return requestRemaining;
+            var remainder = (int) (size % CHUNK_SIZE);
+            if (remainder != 0) {
+                // the buffer may be reused so padding is written explicitly
+                buffer.put(PADDING.slice(0, CHUNK_SIZE - remainder));
+            }
         }
 
-        @Override
-        public void onNext(FileMMapPublisher.FileChunk chunk) {
-            requestRemaining -= chunk.numChunks();
-            delegate.onNext(chunk.buffer());
-            lastChunk = chunk.buffer();
+        private void produced(long n) {
+            demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : Math.max(0, current - n));
         }
 
-        @Override
-        public void onError(Throwable throwable) {
-            delegate.onError(throwable);
+        private void terminate(Throwable throwable, boolean signal) {
+            done = true;
+            remaining = false;
+            pendingBuffers.clear();
+            if (fileSubscription != null) {
+                fileSubscription.cancel();
+                fileSubscription = null;
+            }
+            entries.close();
+            headerArena.release();
+            if (!signal) {
+                return;
+            }
+            if (throwable != null) {
+                subscriber.onError(throwable);
+            } else {
+                subscriber.onComplete();
+            }
         }
 
-        @Override
-        public void onComplete() {
-            onComplete.accept(lastChunk);
+        private class ForwardingFileMMapSubscription implements Flow.Subscriber<FileMMapPublisher.FileChunk> {
+
+            private Flow.Subscription subscription;
+            private ByteBuffer lastChunk;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+            }
+
+            private void request(long n) {
+                subscription.request(n);
+            }
+
+            private void cancel() {
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onNext(FileMMapPublisher.FileChunk chunk) {
+                produced(chunk.numChunks());
+                subscriber.onNext(chunk.buffer());
+                lastChunk = chunk.buffer();
+                chunk.release();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fileSubscription = null;
+                error = throwable;
+            }
+
+            @Override
+            public void onComplete() {
+                if (lastChunk != null && lastChunk.capacity() % CHUNK_SIZE != 0) {
+                    int requiredPadding = CHUNK_SIZE - (lastChunk.capacity() % CHUNK_SIZE);
+                    pendingBuffers.add(PADDING.slice(0, requiredPadding));
+                }
+                fileSubscription = null;
+            }
         }
     }
 }
@@ -0,0 +1,192 @@
+package github.stephenflavin.archives.tar;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+
+/**
+ * An implementation of {@link Flow.Publisher} that reads a tar archive by memory mapping it, each requested element is a single
+ * {@link TarEntry} made up of a {@link Header} and the entry's data, both of which are read-only slices of the mapped archive so no bytes
+ * are copied onto the heap.
+ * <p>
+ * The archive is mapped in windows of {@link #WINDOW_SIZE} bytes, entries larger than a window are mapped on their own and split into
+ * multiple buffers when they exceed {@link Integer#MAX_VALUE} bytes.
+ */
+public class UntaringPublisher implements Flow.Publisher<UntaringPublisher.TarEntry> {
+
+    static final int BLOCK_SIZE = 512;
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024; // 64m
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE - (Integer.MAX_VALUE % BLOCK_SIZE);
+
+    private final Path path;
+
+    public UntaringPublisher(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TarEntry> subscriber) {
+        try {
+            subscriber.onSubscribe(new UntarSubscription(subscriber, path));
+        } catch (Throwable ex) {
+            subscriber.onError(ex);
+        }
+    }
+
+    static long paddedSize(long size) {
+        return Math.ceilDiv(size, BLOCK_SIZE) * BLOCK_SIZE;
+    }
+
+    /**
+     * Maps {@code size} bytes of the channel starting at {@code offset}, split into as many read-only buffers as required to stay within
+     * the 2GB limit of a single mapping.
+     */
+    static List<ByteBuffer> mapRange(FileChannel fc, long offset, long size) throws IOException {
+        var buffers = new ArrayList<ByteBuffer>((int) Math.max(1, Math.ceilDiv(size, MAX_MAPPING_SIZE)));
+        var end = offset + size;
+        while (offset < end) {
+            var length = Math.min(MAX_MAPPING_SIZE, end - offset);
+            buffers.add(FileMMapPublisher.map(fc, offset, length));
+            offset += length;
+        }
+        return List.copyOf(buffers);
+    }
+
+    private static boolean isZeroBlock(ByteBuffer block) {
+        for (int i = 0; i < BLOCK_SIZE; i += Long.BYTES) {
+            if (block.getLong(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class UntarSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super TarEntry> subscriber;
+        private final FileChannel fc;
+        private final long archiveSize;
+
+        private MappedByteBuffer window;
+        private long windowOffset;
+        private long position;
+        private boolean done;
+
+        private UntarSubscription(Flow.Subscriber<? super TarEntry> subscriber,
+                                  Path path) throws IOException {
+            this.subscriber = subscriber;
+            this.fc = FileChannel.open(path, READ);
+            this.archiveSize = fc.size();
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                subscriber.onError(new IllegalArgumentException("§3.9: non-positive requests are not allowed!"));
+                return;
+            }
+
+            var requested = n;
+            try {
+                while (requested > 0 && !done) {
+                    var entry = next();
+                    if (entry == null) {
+                        close();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    requested--;
+                    subscriber.onNext(entry);
+                }
+            } catch (IOException e) {
+                close();
+                subscriber.onError(e);
+            }
+        }
+
+        private TarEntry next() throws IOException {
+            if (position + BLOCK_SIZE > archiveSize) {
+                return null;
+            }
+
+            var block = slice(position, BLOCK_SIZE);
+            // the archive is terminated by (at least) one zero filled block
+            if (isZeroBlock(block)) {
+                return null;
+            }
+
+            var header = Header.view(block);
+            if (!header.hasValidChecksum()) {
+                throw new IOException("Invalid header checksum at offset " + position);
+            }
+
+            var size = header.parseSize();
+            var dataOffset = position + BLOCK_SIZE;
+            if (dataOffset + size > archiveSize) {
+                throw new IOException("Entry \"%s\" at offset %d is truncated, expected %dbytes"
+                        .formatted(header.parseName(), position, size));
+            }
+
+            position = dataOffset + paddedSize(size);
+            return new TarEntry(header, dataOffset, data(dataOffset, size));
+        }
+
+        private List<ByteBuffer> data(long offset, long size) throws IOException {
+            if (size == 0) {
+                return List.of();
+            }
+            if (size <= WINDOW_SIZE) {
+                return List.of(slice(offset, (int) size));
+            }
+            return mapRange(fc, offset, size);
+        }
+
+        private ByteBuffer slice(long offset, int length) throws IOException {
+            if (window == null || offset < windowOffset || offset + length > windowOffset + window.capacity()) {
+                windowOffset = offset;
+                window = FileMMapPublisher.map(fc, offset, Math.min(WINDOW_SIZE, archiveSize - offset));
+            }
+            return window.slice((int) (offset - windowOffset), length);
+        }
+
+        private void close() {
+            done = true;
+            window = null;
+            try {
+                fc.close();
+            } catch (IOException e) {
+                // ignore, mapped buffers remain valid once the channel is closed
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            close();
+        }
+    }
+
+    /**
+     * @param header     a read-only view of the entry's header block.
+     * @param dataOffset the position of the first byte of the entry's data in the archive.
+     * @param data       read-only buffers covering the entry's data in order, empty for entries without data.
+     */
+    public record TarEntry(Header header, long dataOffset, List<ByteBuffer> data) {
+
+        public String name() {
+            return header.parseName();
+        }
+
+        public long size() {
+            return header.parseSize();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package github.stephenflavin.archives.zip;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Direct buffers of {@value #BUFFER_SIZE} bytes which deflate output is written into, shared by the threads compressing entries. Buffers
+ * are only returned once nothing references them, so a pool never holds more buffers than were in use at once.
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024; // 64k
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    ByteBuffer acquire() {
+        var buffer = free.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    void release(ByteBuffer buffer) {
+        free.offer(buffer.clear());
+    }
+
+    /**
+     * @return the number of buffers needed to hold {@code bytes}.
+     */
+    static int buffersFor(long bytes) {
+        return (int) Math.max(1, Math.ceilDiv(bytes, BUFFER_SIZE));
+    }
+}
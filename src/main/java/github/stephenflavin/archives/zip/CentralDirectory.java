@@ -0,0 +1,58 @@
+package github.stephenflavin.archives.zip;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the entries of a zip as they are written and encodes the central directory and end of central directory records which
+ * terminate the archive, in buffers of up to {@value #BUFFER_SIZE} bytes.
+ */
+final class CentralDirectory {
+
+    static final int BUFFER_SIZE = 1024 * 1024; // 1m
+
+    private final List<ZipRecords.CentralEntry> entries = new ArrayList<>();
+    private int index;
+    private long offset = -1;
+    private boolean endWritten;
+
+    void add(ZipRecords.CentralEntry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * @param position the number of bytes written to the archive so far, the first call gives the offset of the central directory.
+     * @return the next buffer of the central directory or, once it has all been returned, the end records, {@code null} once both have
+     * been returned.
+     */
+    ByteBuffer next(long position) {
+        if (offset < 0) {
+            offset = position;
+        }
+
+        if (index < entries.size()) {
+            var size = 0;
+            var end = index;
+            while (end < entries.size() && (end == index || size + entries.get(end).centralHeaderSize() <= BUFFER_SIZE)) {
+                size += entries.get(end++).centralHeaderSize();
+            }
+
+            var buffer = ByteBuffer.allocate(size);
+            for (; index < end; index++) {
+                ZipRecords.putCentralDirectoryHeader(buffer, entries.get(index));
+            }
+            return buffer.flip();
+        }
+
+        if (!endWritten) {
+            endWritten = true;
+            return ZipRecords.endOfCentralDirectory(entries.size(), offset, position - offset);
+        }
+        return null;
+    }
+
+    void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,102 @@
+package github.stephenflavin.archives.zip;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a single entry's data into raw deflate output, as stored in a zip, checksumming the data as it is compressed. Output is written
+ * into buffers from a {@link BufferPool} which are passed to the output consumer, flipped, as each fills.
+ */
+final class EntryDeflater {
+
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final BufferPool pool;
+    private final Consumer<ByteBuffer> output;
+    private ByteBuffer current;
+    private long size;
+    private long compressedSize;
+
+    EntryDeflater(int level, BufferPool pool, Consumer<ByteBuffer> output) {
+        this.deflater = new Deflater(level, true);
+        this.pool = pool;
+        this.output = output;
+    }
+
+    /**
+     * Deflates all of {@code input}, which is no longer referenced once this returns.
+     */
+    void update(ByteBuffer input) {
+        crc.update(input.duplicate());
+        deflater.setInput(input.duplicate());
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Completes the deflate stream and passes on the last, partially filled, buffer.
+     */
+    void finish() {
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (current != null) {
+            output.accept(current.flip());
+            current = null;
+        }
+        size = deflater.getBytesRead();
+        compressedSize = deflater.getBytesWritten();
+        deflater.end();
+    }
+
+    /**
+     * Releases the deflater's native memory without completing the stream.
+     */
+    void end() {
+        deflater.end();
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+    }
+
+    private void deflate() {
+        if (current == null) {
+            current = pool.acquire();
+        }
+        deflater.deflate(current);
+        if (!current.hasRemaining()) {
+            output.accept(current.flip());
+            current = null;
+        }
+    }
+
+    long crc() {
+        return crc.getValue();
+    }
+
+    /**
+     * @return the number of bytes deflated, once {@link #finish()}ed.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the size of the deflate stream, once {@link #finish()}ed.
+     */
+    long compressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @return an upper bound of the deflated size of {@code size} bytes, as zlib's {@code deflateBound}.
+     */
+    static long bound(long size) {
+        return size + (size >> 12) + (size >> 14) + (size >> 25) + 13;
+    }
+}
@@ -0,0 +1,354 @@
+package github.stephenflavin.archives.zip;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.ParallelCrc32;
+import github.stephenflavin.archives.tar.UntaringPublisher;
+
+/**
+ * Publishes a zip archive of stored entries with the contents of a tar archive, as a stream of {@link ByteBuffer}s. The tar is memory
+ * mapped by an {@link UntaringPublisher} and each entry's data is published as the read-only slices of the mapping it's walked from, so
+ * transcoding costs a single sequential read of the tar and a write of the zip. The CRC-32 of each entry is computed by a
+ * {@link ParallelCrc32} while its data is being written and is written, with the sizes, in a data descriptor following the data.
+ * <p>
+ * Regular files, directories and symbolic links are transcoded, keeping their permissions and modification times. Zip has no hard links
+ * so they're written as copies of the file they link to, mapped from the tar again. Other entries, such as devices and the pax or GNU
+ * extension headers, have no zip counterpart and are skipped.
+ * <p>
+ * As every file is stored with a data descriptor, the archives can't be read by {@link java.util.zip.ZipInputStream}, which only allows
+ * data descriptors after deflated entries, see {@link ZipPublisher}. {@link java.util.zip.ZipFile} and {@link ZipReader} read them.
+ */
+public class TarToZipTranscoder implements Flow.Publisher<ByteBuffer> {
+
+    private static final System.Logger logger = System.getLogger(TarToZipTranscoder.class.toString());
+    private static final int REGULAR_FILE_MODE = 0100000;
+    private static final int DIRECTORY_MODE = 040000;
+    private static final int SYMBOLIC_LINK_MODE = 0120000;
+
+    private final Path tarPath;
+
+    public TarToZipTranscoder(Path tarPath) {
+        this.tarPath = tarPath;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        try {
+            subscriber.onSubscribe(new TranscodeSubscription(subscriber, tarPath));
+        } catch (Throwable ex) {
+            subscriber.onError(ex);
+        }
+    }
+
+    /**
+     * An entry whose data has been queued, waiting for its checksum before its data descriptor can be written.
+     */
+    private record ChecksummingEntry(byte[] name, long mtime, int mode, long size, long localHeaderOffset, boolean zip64,
+                                     CompletableFuture<Long> checksum) {
+    }
+
+    /**
+     * The data of a file which later hard links can be copied from, checksummed once.
+     */
+    private record LinkTarget(long dataOffset, long size, CompletableFuture<Long> checksum) {
+    }
+
+    /**
+     * Requests tar entries one at a time, as the buffers queued for the previous entry are published. {@link UntaringPublisher} publishes
+     * entries synchronously within {@link Flow.Subscription#request(long)} so entries are only received while draining.
+     */
+    private static class TranscodeSubscription implements Flow.Subscription, Flow.Subscriber<UntaringPublisher.TarEntry> {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final Path tarPath;
+        private final ArrayDeque<ByteBuffer> pendingBuffers = new ArrayDeque<>(3);
+        private final CentralDirectory centralDirectory = new CentralDirectory();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Map<String, LinkTarget> files = new HashMap<>();
+
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // only accessed while draining
+        private boolean done;
+        private boolean entriesPublished;
+        private long offset;
+        private Flow.Subscription tarEntries;
+        private ChecksummingEntry checksummingEntry;
+        private FileChannel tarChannel;
+
+        private TranscodeSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, Path tarPath) {
+            this.subscriber = subscriber;
+            this.tarPath = tarPath;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("§3.9: non-positive requests are not allowed!");
+            } else {
+                demand.getAndUpdate(current -> {
+                    var sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            var missed = 1;
+            do {
+                while (!done && step()) {
+                    // keep publishing until demand or entries are exhausted
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return {@code true} if progress was made and another step may be taken.
+         */
+        private boolean step() {
+            if (cancelled) {
+                terminate(null, false);
+                return false;
+            }
+            if (error != null) {
+                terminate(error, true);
+                return false;
+            }
+            if (demand.get() == 0) {
+                return false;
+            }
+
+            var buffer = pendingBuffers.poll();
+            if (buffer != null) {
+                produced(1);
+                offset += buffer.remaining();
+                subscriber.onNext(buffer);
+                return true;
+            }
+
+            if (checksummingEntry != null) {
+                if (!checksummingEntry.checksum().isDone()) {
+                    // resumed once checksummed
+                    return false;
+                }
+                var entry = checksummingEntry;
+                checksummingEntry = null;
+                completeChecksum(entry);
+                return true;
+            }
+
+            if (!entriesPublished) {
+                if (tarEntries == null) {
+                    new UntaringPublisher(tarPath).subscribe(this);
+                }
+                if (tarEntries != null) {
+                    // calls back to onNext, onComplete or onError before returning
+                    tarEntries.request(1);
+                }
+                return true;
+            }
+
+            var centralDirectoryBuffer = centralDirectory.next(offset);
+            if (centralDirectoryBuffer != null) {
+                pendingBuffers.add(centralDirectoryBuffer);
+                return true;
+            }
+
+            terminate(null, true);
+            return false;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            tarEntries = subscription;
+        }
+
+        /**
+         * Queues the entry's local file header and data. Nothing is pending at this point so {@link #offset} is the position of the
+         * header.
+         */
+        @Override
+        public void onNext(UntaringPublisher.TarEntry entry) {
+            var header = entry.header();
+            var mode = header.parseMode() & 07777;
+            var mtime = header.parseMtime() * 1000;
+            try {
+                switch (header.getTypeFlag()) {
+                    case 0, '0', '7' -> {
+                        var checksum = nextStoredEntry(name(entry.name()), mtime, mode | REGULAR_FILE_MODE, entry.data(), entry.size());
+                        files.put(entry.name(), new LinkTarget(entry.dataOffset(), entry.size(), checksum));
+                    }
+                    case '5' -> {
+                        var name = name(entry.name().endsWith("/") ? entry.name() : entry.name() + "/");
+                        pendingBuffers.add(ZipRecords.localFileHeader(name, ZipRecords.METHOD_STORED, mtime, true, false));
+                        centralDirectory.add(new ZipRecords.CentralEntry(name, ZipRecords.METHOD_STORED, 0, 0, 0, offset, mtime,
+                                mode | DIRECTORY_MODE, true));
+                    }
+                    case '2' -> {
+                        // zip stores the target of a link as its data
+                        var target = header.parseLinkName().getBytes(UTF_8);
+                        nextStoredEntry(name(entry.name()), mtime, mode | SYMBOLIC_LINK_MODE, List.of(ByteBuffer.wrap(target)),
+                                target.length);
+                    }
+                    case '1' -> {
+                        var target = files.get(header.parseLinkName());
+                        if (target == null) {
+                            logger.log(DEBUG, "Skipping hard link \"{0}\" to \"{1}\" which isn't a preceding file",
+                                    entry.name(),
+                                    header.parseLinkName());
+                            return;
+                        }
+                        queueStoredEntry(name(entry.name()), mtime, mode | REGULAR_FILE_MODE, map(target), target.size(),
+                                target.checksum());
+                    }
+                    default -> logger.log(DEBUG, "Skipping entry \"{0}\" with unsupported type flag {1}",
+                            entry.name(),
+                            (char) header.getTypeFlag());
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            tarEntries = null;
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            tarEntries = null;
+            entriesPublished = true;
+        }
+
+        /**
+         * @return the entry's checksum, completed once its data has been checksummed while it's written.
+         */
+        private CompletableFuture<Long> nextStoredEntry(byte[] name, long mtime, int mode, List<ByteBuffer> data, long size) {
+            var crc = new ParallelCrc32();
+            for (ByteBuffer buffer : data) {
+                crc.update(buffer);
+            }
+            var checksum = crc.value();
+            queueStoredEntry(name, mtime, mode, data, size, checksum);
+            return checksum;
+        }
+
+        private void queueStoredEntry(byte[] name, long mtime, int mode, List<ByteBuffer> data, long size,
+                                      CompletableFuture<Long> checksum) {
+            var zip64 = size >= ZipRecords.ZIP64_LIMIT;
+            pendingBuffers.add(ZipRecords.localFileHeader(name, ZipRecords.METHOD_STORED, mtime, false, zip64));
+            // slices of the mapped tar remain mapped for as long as they are referenced
+            pendingBuffers.addAll(data);
+            checksummingEntry = new ChecksummingEntry(name, mtime, mode, size, offset, zip64, checksum);
+            checksum.whenComplete((value, ex) -> drain());
+        }
+
+        /**
+         * Maps a hard link's target from the tar, split into as many buffers as required to stay within the 2GB limit of a single mapping.
+         */
+        private List<ByteBuffer> map(LinkTarget target) throws IOException {
+            if (tarChannel == null) {
+                tarChannel = FileChannel.open(tarPath, READ);
+            }
+            var buffers = new ArrayList<ByteBuffer>();
+            var position = target.dataOffset();
+            var end = position + target.size();
+            while (position < end) {
+                var length = Math.min(Integer.MAX_VALUE, end - position);
+                buffers.add(FileMMapPublisher.map(tarChannel, position, length));
+                position += length;
+            }
+            return buffers;
+        }
+
+        /**
+         * Queues the data descriptor following an entry's data and records the entry for the central directory.
+         */
+        private void completeChecksum(ChecksummingEntry entry) {
+            long crc;
+            try {
+                crc = entry.checksum().join();
+            } catch (CompletionException e) {
+                error = e.getCause();
+                return;
+            }
+            pendingBuffers.add(ZipRecords.dataDescriptor(crc, entry.size(), entry.size(), entry.zip64()));
+            centralDirectory.add(new ZipRecords.CentralEntry(entry.name(), ZipRecords.METHOD_STORED, crc, entry.size(), entry.size(),
+                    entry.localHeaderOffset(), entry.mtime(), entry.mode(), false));
+        }
+
+        private static byte[] name(String entryName) throws IOException {
+            var name = entryName.getBytes(UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Entry name is too long for a zip: " + entryName);
+            }
+            return name;
+        }
+
+        private void produced(long n) {
+            demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : Math.max(0, current - n));
+        }
+
+        private void terminate(Throwable throwable, boolean signal) {
+            done = true;
+            pendingBuffers.clear();
+            centralDirectory.clear();
+            if (tarEntries != null) {
+                tarEntries.cancel();
+                tarEntries = null;
+            }
+            checksummingEntry = null;
+            files.clear();
+            if (tarChannel != null) {
+                try {
+                    tarChannel.close();
+                } catch (IOException e) {
+                    // ignore, mapped buffers remain valid once the channel is closed
+                }
+                tarChannel = null;
+            }
+            if (!signal) {
+                return;
+            }
+            if (throwable != null) {
+                subscriber.onError(throwable);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
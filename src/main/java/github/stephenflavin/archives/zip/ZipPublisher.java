@@ -0,0 +1,665 @@
+package github.stephenflavin.archives.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import github.stephenflavin.archives.EntryWalker;
+import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.ParallelCrc32;
+import github.stephenflavin.archives.ReleasingSubscriber;
+
+/**
+ * Publishes a zip archive of the given files and directories as a stream of {@link ByteBuffer}s, the zip counterpart of
+ * {@link github.stephenflavin.archives.tar.TaringPublisher}. Files are stored uncompressed and their data is published as mapped buffers
+ * straight from the page cache, so the CRC-32 of each file is computed by a {@link ParallelCrc32} while its chunks are being written and
+ * is written, with the sizes, in a data descriptor following the data. The central directory is built from the entries as they are
+ * published and is published last, in buffers of up to {@value CentralDirectory#BUFFER_SIZE} bytes.
+ * <p>
+ * Publishers created with {@link #deflated(Path...)} instead deflate files, compressing entries ahead of the one being published
+ * concurrently on an {@link Executor}. Compressed output is held in pooled direct buffers until its entry is published, in input order,
+ * and at most {@code memoryLimit} bytes of output are held waiting to be published. Buffers return to the pool once a
+ * {@link ReleasingSubscriber} releases them, or once {@code onNext} returns when created with {@code releaseAfterOnNext}, otherwise
+ * they're left to the GC. Entries which don't shrink are stored instead, reading them again.
+ * Entries too large to hold within a quarter of the limit are deflated as they are published, without falling back to storing them, which
+ * costs at most a few bytes per 16KiB as deflate stores incompressible blocks itself.
+ * <p>
+ * Zip64 records are written for files of 4GB or more, for entries at offsets of 4GB or more and for archives of 65535 entries or more, so
+ * archives of any size can be created.
+ * <p>
+ * Stored entries, including those which fall back to being stored, defer their CRC-32 to a data descriptor. Readers using the central
+ * directory, such as {@link java.util.zip.ZipFile}, {@link ZipReader}, {@code unzip} and Python's {@code zipfile}, read them, but
+ * {@link java.util.zip.ZipInputStream} only allows data descriptors after deflated entries and rejects these archives with "only DEFLATED
+ * entries can have EXT descriptor".
+ */
+public class ZipPublisher implements Flow.Publisher<ByteBuffer> {
+
+    public static final long DEFAULT_MEMORY_LIMIT = 64 * 1024 * 1024; // 64m
+
+    private static final int MAX_LOOKAHEAD = 1024;
+    private static final int DEFLATE_SLICE_SIZE = 1024 * 1024; // 1m
+    private static final int STORED = -2;
+    private static final String ATTRIBUTES = "unix:size,isDirectory,lastModifiedTime,mode";
+    private static ExecutorService executorService = null;
+
+    private final Path[] paths;
+    private final int level;
+    private final long memoryLimit;
+    private final Executor executor;
+    private final boolean releaseAfterOnNext;
+
+    public ZipPublisher(Path... paths) {
+        this(false, paths);
+    }
+
+    /**
+     * @param releaseAfterOnNext whether buffers are released as soon as {@link Flow.Subscriber#onNext(Object)} returns, unmapping file
+     *                           data rather than waiting for the GC and reusing the buffers deflate output is written into. Only safe
+     *                           when the subscriber has finished with each buffer by then, e.g. it writes synchronously, as accessing an
+     *                           unmapped buffer crashes the JVM.
+     * @param paths              the files and directories to zip.
+     */
+    public ZipPublisher(boolean releaseAfterOnNext, Path... paths) {
+        this(STORED, 0, null, releaseAfterOnNext, paths);
+    }
+
+    /**
+     * @return a publisher deflating files at the default level on a shared pool with one thread per core.
+     */
+    public static ZipPublisher deflated(Path... paths) {
+        return new ZipPublisher(Deflater.DEFAULT_COMPRESSION, DEFAULT_MEMORY_LIMIT, executor(), false, paths);
+    }
+
+    /**
+     * @param level              the {@link Deflater} compression level.
+     * @param memoryLimit        the maximum number of bytes of compressed output held waiting to be published.
+     * @param executor           runs the deflate tasks.
+     * @param releaseAfterOnNext see {@link #ZipPublisher(boolean, Path...)}.
+     * @param paths              the files and directories to zip.
+     */
+    public ZipPublisher(int level, long memoryLimit, Executor executor, boolean releaseAfterOnNext, Path... paths) {
+        for (Path path : paths) {
+            if (!Files.exists(path)) {
+                throw new IllegalArgumentException("File does not exist: " + path);
+            }
+        }
+        if (level != STORED && memoryLimit < BufferPool.BUFFER_SIZE * 4L) {
+            throw new IllegalArgumentException("memoryLimit must be at least " + BufferPool.BUFFER_SIZE * 4 + " bytes");
+        }
+        this.paths = paths;
+        this.level = level;
+        this.memoryLimit = memoryLimit;
+        this.executor = executor;
+        this.releaseAfterOnNext = releaseAfterOnNext;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        try {
+            var subscription = new ZipSubscription(subscriber, this, subscriber instanceof ReleasingSubscriber);
+            if (subscriber instanceof ReleasingSubscriber releasingSubscriber) {
+                releasingSubscriber.releaseTo(subscription::release);
+            }
+            subscriber.onSubscribe(subscription);
+        } catch (Throwable ex) {
+            subscriber.onError(ex);
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executorService == null) {
+            var threadCount = new AtomicInteger();
+            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                var thread = new Thread(r, "zip-deflate-thread-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executorService;
+    }
+
+    /**
+     * @param deflated the entry's compressed output once it has been deflated, {@code null} for directories, stored entries and entries
+     *                 deflated as they are published.
+     * @param buffers  the number of pooled buffers reserved for the entry's compressed output.
+     */
+    private record QueuedEntry(EntryWalker.EntryPath entryPath,
+                               byte[] name,
+                               boolean directory,
+                               long size,
+                               long mtime,
+                               int mode,
+                               CompletableFuture<DeflatedEntry> deflated,
+                               int buffers) {
+    }
+
+    private record DeflatedEntry(long crc, long size, long compressedSize, List<ByteBuffer> buffers) {
+    }
+
+    /**
+     * A trampolined state machine like the one behind {@link github.stephenflavin.archives.tar.TaringPublisher}, whichever thread
+     * increments the work counter from zero publishes until demand is exhausted, or until the next entry is still being deflated in which
+     * case the thread completing it resumes publishing. Entries are followed by the central directory and end of central directory
+     * records.
+     */
+    private static class ZipSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final EntryWalker entries;
+        private final ArrayDeque<ByteBuffer> pendingBuffers = new ArrayDeque<>(3);
+        private final ArrayDeque<QueuedEntry> queuedEntries = new ArrayDeque<>();
+        private final CentralDirectory centralDirectory = new CentralDirectory();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final BufferPool pool = new BufferPool();
+        // buffers are compared by identity as equal buffers may both be published
+        private final Set<ByteBuffer> pooledBuffers = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        private final int level;
+        private final Executor executor;
+        private final boolean releaseAfterOnNext;
+        private final boolean recycleBuffers;
+        private final int maxBuffers;
+
+        private volatile boolean cancelled;
+        private volatile boolean terminated;
+        private volatile Throwable error;
+
+        // only accessed while draining
+        private boolean done;
+        private boolean entriesPublished;
+        private long offset;
+        private int reservedBuffers;
+        private QueuedEntry unqueuedEntry;
+        private Flow.Subscriber<FileMMapPublisher.FileChunk> fileSubscription;
+        private Flow.Subscription fileChunks;
+        private ForwardingFileMMapSubscription checksummingFile;
+
+        /**
+         * @param releasing whether the subscriber releases each buffer once it has finished with it, through {@link #release(ByteBuffer)}.
+         */
+        private ZipSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, ZipPublisher publisher, boolean releasing) {
+            this.subscriber = subscriber;
+            this.level = publisher.level;
+            this.executor = publisher.executor;
+            this.releaseAfterOnNext = publisher.releaseAfterOnNext;
+            this.recycleBuffers = releaseAfterOnNext || releasing;
+            this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, publisher.memoryLimit / BufferPool.BUFFER_SIZE);
+            this.entries = new EntryWalker(publisher.paths);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("§3.9: non-positive requests are not allowed!");
+            } else {
+                demand.getAndUpdate(current -> {
+                    var sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Returns a published buffer to the pool if deflate output was written into it, called from any thread.
+         */
+        private void release(ByteBuffer buffer) {
+            if (pooledBuffers.remove(buffer)) {
+                pool.release(buffer);
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            var missed = 1;
+            do {
+                while (!done && step()) {
+                    // keep publishing until demand or entries are exhausted
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return {@code true} if progress was made and another step may be taken.
+         */
+        private boolean step() {
+            if (cancelled) {
+                terminate(null, false);
+                return false;
+            }
+            if (error != null) {
+                terminate(error, true);
+                return false;
+            }
+            if (demand.get() == 0) {
+                return false;
+            }
+
+            var buffer = pendingBuffers.poll();
+            if (buffer != null) {
+                produced(1);
+                offset += buffer.remaining();
+                subscriber.onNext(buffer);
+                if (releaseAfterOnNext) {
+                    release(buffer);
+                }
+                return true;
+            }
+
+            if (fileSubscription != null) {
+                // stored chunks are published synchronously, reducing demand by the number of chunks in each buffer, while deflated
+                // chunks are compressed into pending buffers so are requested one at a time
+                fileChunks.request(fileSubscription instanceof ForwardingFileMMapSubscription ? demand.get() : 1);
+                return true;
+            }
+
+            if (checksummingFile != null) {
+                if (!checksummingFile.checksum.isDone()) {
+                    // resumed once checksummed
+                    return false;
+                }
+                var file = checksummingFile;
+                checksummingFile = null;
+                file.completeChecksum();
+                return true;
+            }
+
+            if (!entriesPublished) {
+                try {
+                    queueEntries();
+                    var next = queuedEntries.peek();
+                    if (next != null) {
+                        if (next.deflated() != null && !next.deflated().isDone()) {
+                            // resumed once deflated
+                            return false;
+                        }
+                        queuedEntries.poll();
+                        nextEntry(next);
+                        return true;
+                    }
+                } catch (IOException | UncheckedIOException | CompletionException e) {
+                    terminate(e instanceof CompletionException ? e.getCause() : e, true);
+                    return false;
+                }
+                entriesPublished = true;
+            }
+
+            var centralDirectoryBuffer = centralDirectory.next(offset);
+            if (centralDirectoryBuffer != null) {
+                pendingBuffers.add(centralDirectoryBuffer);
+                return true;
+            }
+
+            terminate(null, true);
+            return false;
+        }
+
+        /**
+         * Reads the attributes of walked entries ahead of the one being published, submitting files to be deflated while their output
+         * fits within the memory limit. Stored archives only look one entry ahead.
+         */
+        private void queueEntries() throws IOException {
+            var lookahead = level == STORED ? 1 : MAX_LOOKAHEAD;
+            while (queuedEntries.size() < lookahead) {
+                if (unqueuedEntry == null) {
+                    if (!entries.hasNext()) {
+                        return;
+                    }
+                    unqueuedEntry = readEntry(entries.next());
+                }
+
+                var entry = unqueuedEntry;
+                if (entry.buffers() > 0) {
+                    if (reservedBuffers + entry.buffers() > maxBuffers) {
+                        // entries are at most a quarter of the limit so an earlier entry is still queued
+                        return;
+                    }
+                    reservedBuffers += entry.buffers();
+                    var path = entry.entryPath().path();
+                    var deflated = CompletableFuture.supplyAsync(() -> deflate(path), executor);
+                    deflated.whenComplete((res, ex) -> drain());
+                    entry = new QueuedEntry(entry.entryPath(), entry.name(), false, entry.size(), entry.mtime(), entry.mode(), deflated,
+                            entry.buffers());
+                }
+                queuedEntries.add(entry);
+                unqueuedEntry = null;
+            }
+        }
+
+        private QueuedEntry readEntry(EntryWalker.EntryPath entryPath) throws IOException {
+            var attributes = Files.readAttributes(entryPath.path(), ATTRIBUTES);
+            var directory = (boolean) attributes.get("isDirectory");
+            var name = (directory ? entryPath.name() + "/" : entryPath.name()).getBytes(UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Entry name is too long for a zip: " + entryPath.name());
+            }
+            var size = (long) attributes.get("size");
+
+            var buffers = directory || level == STORED ? 0 : BufferPool.buffersFor(EntryDeflater.bound(size));
+            if (buffers > maxBuffers / 4) {
+                // deflated as it is published
+                buffers = 0;
+            }
+            return new QueuedEntry(entryPath, name, directory, size, ((FileTime) attributes.get("lastModifiedTime")).toMillis(),
+                    (int) attributes.get("mode"), null, buffers);
+        }
+
+        private DeflatedEntry deflate(Path path) {
+            var buffers = new ArrayList<ByteBuffer>();
+            var entryDeflater = new EntryDeflater(level, pool, buffers::add);
+            var subscriber = new Flow.Subscriber<FileMMapPublisher.FileChunk>() {
+                private Flow.Subscription subscription;
+                private Throwable failure;
+                private boolean stopped;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(FileMMapPublisher.FileChunk chunk) {
+                    // deflated a slice at a time so the subscription terminating stops large files part way through
+                    var buffer = chunk.buffer();
+                    for (int position = 0; position < buffer.limit() && !stopped; position += DEFLATE_SLICE_SIZE) {
+                        if (terminated) {
+                            stopped = true;
+                            subscription.cancel();
+                        } else {
+                            entryDeflater.update(buffer.slice(position, Math.min(DEFLATE_SLICE_SIZE, buffer.limit() - position)));
+                        }
+                    }
+                    chunk.release();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    failure = throwable;
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            };
+            try {
+                // chunks are published synchronously
+                new FileMMapPublisher(path, true).subscribe(subscriber);
+                if (subscriber.failure != null) {
+                    throw new CompletionException(subscriber.failure);
+                }
+                if (subscriber.stopped) {
+                    throw new CancellationException();
+                }
+                entryDeflater.finish();
+            } catch (RuntimeException e) {
+                entryDeflater.end();
+                buffers.forEach(pool::release);
+                throw e;
+            }
+            return new DeflatedEntry(entryDeflater.crc(), entryDeflater.size(), entryDeflater.compressedSize(), buffers);
+        }
+
+        /**
+         * Queues the entry's local file header and either its deflated output, or subscribes to its data. Nothing is pending at this
+         * point so {@link #offset} is the position of the header.
+         */
+        private void nextEntry(QueuedEntry entry) throws IOException {
+            if (entry.directory()) {
+                pendingBuffers.add(ZipRecords.localFileHeader(entry.name(), ZipRecords.METHOD_STORED, entry.mtime(), true, false));
+                centralDirectory.add(new ZipRecords.CentralEntry(entry.name(), ZipRecords.METHOD_STORED, 0, 0, 0, offset, entry.mtime(),
+                        entry.mode(), true));
+                return;
+            }
+
+            if (entry.deflated() != null) {
+                reservedBuffers -= entry.buffers();
+                var deflated = entry.deflated().join();
+                if (deflated.size() != entry.size()) {
+                    deflated.buffers().forEach(pool::release);
+                    throw new IOException("%s changed size while being archived, expected %d bytes but read %d"
+                            .formatted(entry.entryPath().path(), entry.size(), deflated.size()));
+                }
+                if (deflated.compressedSize() >= deflated.size()) {
+                    deflated.buffers().forEach(pool::release);
+                    nextStoredEntry(entry);
+                    return;
+                }
+                pendingBuffers.add(ZipRecords.localFileHeader(entry.name(), ZipRecords.METHOD_DEFLATED, entry.mtime(), false, false));
+                pendingBuffers.addAll(deflated.buffers());
+                if (recycleBuffers) {
+                    pooledBuffers.addAll(deflated.buffers());
+                }
+                addDataDescriptor(entry, ZipRecords.METHOD_DEFLATED, deflated.crc(), deflated.compressedSize(), deflated.size(), false);
+                return;
+            }
+
+            if (level != STORED) {
+                var zip64 = EntryDeflater.bound(entry.size()) >= ZipRecords.ZIP64_LIMIT;
+                pendingBuffers.add(ZipRecords.localFileHeader(entry.name(), ZipRecords.METHOD_DEFLATED, entry.mtime(), false, zip64));
+                subscribeToFile(entry, new DeflatingFileMMapSubscription(entry, offset, zip64));
+                return;
+            }
+
+            nextStoredEntry(entry);
+        }
+
+        private void nextStoredEntry(QueuedEntry entry) {
+            var zip64 = entry.size() >= ZipRecords.ZIP64_LIMIT;
+            pendingBuffers.add(ZipRecords.localFileHeader(entry.name(), ZipRecords.METHOD_STORED, entry.mtime(), false, zip64));
+            subscribeToFile(entry, new ForwardingFileMMapSubscription(entry, offset, zip64));
+        }
+
+        private void subscribeToFile(QueuedEntry entry, Flow.Subscriber<FileMMapPublisher.FileChunk> subscriber) {
+            fileSubscription = subscriber;
+            new FileMMapPublisher(entry.entryPath().path(), releaseAfterOnNext).subscribe(subscriber);
+        }
+
+        /**
+         * Queues the data descriptor following an entry's data and records the entry for the central directory.
+         */
+        private void addDataDescriptor(QueuedEntry entry, int method, long crc, long compressedSize, long size, boolean zip64) {
+            pendingBuffers.add(ZipRecords.dataDescriptor(crc, compressedSize, size, zip64));
+            centralDirectory.add(new ZipRecords.CentralEntry(entry.name(), method, crc, compressedSize, size, offset, entry.mtime(),
+                    entry.mode(), false));
+        }
+
+        private void produced(long n) {
+            demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : Math.max(0, current - n));
+        }
+
+        /**
+         * Stops publishing, along with any look-ahead deflate tasks, which return their buffers to the pool as they stop.
+         */
+        private void terminate(Throwable throwable, boolean signal) {
+            done = true;
+            terminated = true;
+            pendingBuffers.clear();
+            centralDirectory.clear();
+            if (fileChunks != null) {
+                fileChunks.cancel();
+            }
+            fileSubscription = null;
+            fileChunks = null;
+            checksummingFile = null;
+            for (QueuedEntry entry : queuedEntries) {
+                if (entry.deflated() != null) {
+                    // tasks which haven't started never run, running ones see terminated
+                    entry.deflated().cancel(false);
+                }
+            }
+            queuedEntries.clear();
+            unqueuedEntry = null;
+            entries.close();
+            if (!signal) {
+                return;
+            }
+            if (throwable != null) {
+                subscriber.onError(throwable);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+
+        /**
+         * Subscribes to a file's chunks on behalf of an entry, checksumming them and checking the file's size is as read up front, since
+         * the local header has already declared whether the data descriptor's sizes are 8 bytes.
+         */
+        private abstract class FileMMapSubscription implements Flow.Subscriber<FileMMapPublisher.FileChunk> {
+
+            final QueuedEntry entry;
+            final long localHeaderOffset;
+            final boolean zip64;
+
+            private FileMMapSubscription(QueuedEntry entry, long localHeaderOffset, boolean zip64) {
+                this.entry = entry;
+                this.localHeaderOffset = localHeaderOffset;
+                this.zip64 = zip64;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                // empty files complete before subscribing
+                if (fileSubscription == this) {
+                    fileChunks = subscription;
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fileSubscription = null;
+                fileChunks = null;
+                error = throwable;
+            }
+
+            @Override
+            public void onComplete() {
+                fileSubscription = null;
+                fileChunks = null;
+                complete();
+            }
+
+            abstract void complete();
+
+            void complete(int method, long crc, long compressedSize, long size) {
+                if (size != entry.size()) {
+                    error = new IOException("%s changed size while being archived, expected %d bytes but read %d"
+                            .formatted(entry.entryPath().path(), entry.size(), size));
+                    return;
+                }
+                pendingBuffers.add(ZipRecords.dataDescriptor(crc, compressedSize, size, zip64));
+                centralDirectory.add(new ZipRecords.CentralEntry(entry.name(), method, crc, compressedSize, size, localHeaderOffset,
+                        entry.mtime(), entry.mode(), false));
+            }
+        }
+
+        /**
+         * Publishes a stored file's chunks as they are mapped, checksumming each with a {@link ParallelCrc32} while it is written.
+         */
+        private class ForwardingFileMMapSubscription extends FileMMapSubscription {
+
+            private final ParallelCrc32 crc = new ParallelCrc32();
+            private CompletableFuture<Long> checksum;
+            private long size;
+
+            private ForwardingFileMMapSubscription(QueuedEntry entry, long localHeaderOffset, boolean zip64) {
+                super(entry, localHeaderOffset, zip64);
+            }
+
+            @Override
+            public void onNext(FileMMapPublisher.FileChunk chunk) {
+                var buffer = chunk.buffer();
+                var checksummed = crc.update(buffer);
+                size += buffer.remaining();
+                offset += buffer.remaining();
+                produced(chunk.numChunks());
+                subscriber.onNext(buffer);
+                // the chunk may be unmapped once both onNext has returned and it has been checksummed
+                checksummed.thenRun(chunk::release);
+            }
+
+            @Override
+            void complete() {
+                checksum = crc.value();
+                if (checksum.isDone()) {
+                    completeChecksum();
+                } else {
+                    checksummingFile = this;
+                    checksum.whenComplete((value, ex) -> drain());
+                }
+            }
+
+            private void completeChecksum() {
+                try {
+                    complete(ZipRecords.METHOD_STORED, checksum.join(), size, size);
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                }
+            }
+        }
+
+        private class DeflatingFileMMapSubscription extends FileMMapSubscription {
+
+            private final EntryDeflater entryDeflater;
+
+            private DeflatingFileMMapSubscription(QueuedEntry entry, long localHeaderOffset, boolean zip64) {
+                super(entry, localHeaderOffset, zip64);
+                this.entryDeflater = new EntryDeflater(level, pool, buffer -> {
+                    pendingBuffers.add(buffer);
+                    if (recycleBuffers) {
+                        pooledBuffers.add(buffer);
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(FileMMapPublisher.FileChunk chunk) {
+                entryDeflater.update(chunk.buffer());
+                chunk.release();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                entryDeflater.end();
+                super.onError(throwable);
+            }
+
+            @Override
+            void complete() {
+                entryDeflater.finish();
+                complete(ZipRecords.METHOD_DEFLATED, entryDeflater.crc(), entryDeflater.compressedSize(), entryDeflater.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package github.stephenflavin.archives.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+
+/**
+ * Random access to the entries of a zip archive through memory mapping rather than {@link java.util.zip.ZipFile}'s streams and heap copies.
+ * The archive is mapped, the end of central directory record, and Zip64 record if present, are located from the end of the file and the
+ * central directory is indexed into an open addressing hash table of the offsets of its headers, which are only decoded when looked up, so
+ * memory use is a few bytes per entry beyond the mapping. Looking up an entry reads only its central directory header and the two length
+ * fields of its local header, which give the offset of its data.
+ * <p>
+ * {@link #slice(String)} returns the data of stored entries as a read-only view of the mapping without copying, while {@link #open(String)}
+ * returns a channel over any entry which inflates deflated entries straight into the caller's buffers. The CRC-32 of the data is checked
+ * once the channel reaches the end of the entry.
+ * <p>
+ * Archives of up to 2GB are mapped whole, larger archives map each entry's data, or windows of it, as it is read. Mappings are released by
+ * the GC, so buffers remain valid after the reader is closed.
+ */
+public final class ZipReader implements Closeable {
+
+    private static final int MAX_END_OF_CENTRAL_DIRECTORY_SEARCH = ZipRecords.END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF; // max comment
+    private static final int INFLATE_WINDOW_SIZE = 64 * 1024 * 1024; // 64m
+
+    private final FileChannel fc;
+    private final ByteBuffer archive;
+    private final ByteBuffer centralDirectory;
+    private final int[] headerOffsets;
+    // indexes into headerOffsets plus one, zero marks an empty slot
+    private final int[] table;
+
+    private ZipReader(FileChannel fc, ByteBuffer archive, ByteBuffer centralDirectory, int[] headerOffsets) {
+        this.fc = fc;
+        this.archive = archive;
+        this.centralDirectory = centralDirectory;
+        this.headerOffsets = headerOffsets;
+        this.table = new int[Integer.highestOneBit(Math.max(1, headerOffsets.length)) << 2];
+        var mask = table.length - 1;
+        for (int i = 0; i < headerOffsets.length; i++) {
+            var slot = hash(nameOf(headerOffsets[i])) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @throws IOException if the file is not a zip archive.
+     */
+    public static ZipReader open(Path archivePath) throws IOException {
+        var fc = FileChannel.open(archivePath, READ);
+        try {
+            var size = fc.size();
+            var archive = size <= Integer.MAX_VALUE ? FileMMapPublisher.map(fc, 0, size).order(ByteOrder.LITTLE_ENDIAN) : null;
+
+            var tailSize = (int) Math.min(size, MAX_END_OF_CENTRAL_DIRECTORY_SEARCH);
+            var tail = map(fc, archive, size - tailSize, tailSize);
+            var end = tailSize - ZipRecords.END_OF_CENTRAL_DIRECTORY_SIZE;
+            while (end >= 0 && tail.getInt(end) != ZipRecords.END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                end--;
+            }
+            if (end < 0) {
+                throw new IOException(archivePath + " is not a zip archive, no end of central directory record was found");
+            }
+
+            long entries = tail.getShort(end + 10) & 0xFFFF;
+            long centralDirectorySize = tail.getInt(end + 12) & ZipRecords.ZIP64_LIMIT;
+            long centralDirectoryOffset = tail.getInt(end + 16) & ZipRecords.ZIP64_LIMIT;
+            var locator = end - ZipRecords.ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+            if (locator >= 0 && tail.getInt(locator) == ZipRecords.ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+                var zip64End = map(fc, archive, tail.getLong(locator + 8), 56);
+                if (zip64End.getInt(0) != ZipRecords.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    throw new IOException(archivePath + " has a corrupt Zip64 end of central directory record");
+                }
+                entries = zip64End.getLong(32);
+                centralDirectorySize = zip64End.getLong(40);
+                centralDirectoryOffset = zip64End.getLong(48);
+            }
+            if (centralDirectorySize > Integer.MAX_VALUE || centralDirectoryOffset + centralDirectorySize > size) {
+                throw new IOException(archivePath + " has a central directory of %d bytes at %d which can't be mapped"
+                        .formatted(centralDirectorySize, centralDirectoryOffset));
+            }
+
+            var centralDirectory = map(fc, archive, centralDirectoryOffset, (int) centralDirectorySize);
+            var headerOffsets = new int[Math.toIntExact(entries)];
+            var offset = 0;
+            for (int i = 0; i < headerOffsets.length; i++) {
+                if (offset + ZipRecords.CENTRAL_DIRECTORY_HEADER_SIZE > centralDirectory.limit()
+                        || centralDirectory.getInt(offset) != ZipRecords.CENTRAL_DIRECTORY_SIGNATURE) {
+                    throw new IOException(archivePath + " has a corrupt central directory, entry " + i + " is missing");
+                }
+                headerOffsets[i] = offset;
+                offset += ZipRecords.CENTRAL_DIRECTORY_HEADER_SIZE
+                        + (centralDirectory.getShort(offset + 28) & 0xFFFF)
+                        + (centralDirectory.getShort(offset + 30) & 0xFFFF)
+                        + (centralDirectory.getShort(offset + 32) & 0xFFFF);
+            }
+            return new ZipReader(fc, archive, centralDirectory, headerOffsets);
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of entries in the archive.
+     */
+    public int size() {
+        return headerOffsets.length;
+    }
+
+    /**
+     * @return every entry, in central directory order, decoded lazily.
+     */
+    public Stream<Entry> entries() {
+        return IntStream.range(0, headerOffsets.length).mapToObj(i -> decode(headerOffsets[i]));
+    }
+
+    public Optional<Entry> entry(String name) {
+        var key = ByteBuffer.wrap(name.getBytes(UTF_8));
+        var mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            var headerOffset = headerOffsets[table[slot] - 1];
+            if (nameOf(headerOffset).equals(key)) {
+                return Optional.of(decode(headerOffset));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the data of a stored entry as a read-only view of the mapped archive.
+     * @throws IllegalArgumentException if the archive has no entry with the given name.
+     * @throws IOException              if the entry is compressed or encrypted, or larger than a single buffer.
+     */
+    public ByteBuffer slice(String name) throws IOException {
+        var entry = lookup(name);
+        if (entry.method() != ZipRecords.METHOD_STORED) {
+            throw new IOException(name + " is compressed, use open(String) to read it");
+        }
+        if (entry.size() > Integer.MAX_VALUE) {
+            throw new IOException("%s is %d bytes, too large for a single buffer".formatted(name, entry.size()));
+        }
+        return map(fc, archive, dataOffset(entry), (int) entry.size()).order(ByteOrder.BIG_ENDIAN).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a channel reading the named entry's data, inflating it if it is deflated.
+     * @throws IllegalArgumentException if the archive has no entry with the given name.
+     * @throws IOException              if the entry is encrypted or compressed with a method other than deflate.
+     */
+    public ReadableByteChannel open(String name) throws IOException {
+        var entry = lookup(name);
+        if (entry.method() != ZipRecords.METHOD_STORED && entry.method() != ZipRecords.METHOD_DEFLATED) {
+            throw new IOException("%s is compressed with unsupported method %d".formatted(name, entry.method()));
+        }
+        return new EntryChannel(entry, dataOffset(entry));
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+
+    private Entry lookup(String name) throws IOException {
+        var entry = entry(name).orElseThrow(() -> new IllegalArgumentException("No entry named \"" + name + "\" in archive"));
+        if ((entry.flags() & ZipRecords.FLAG_ENCRYPTED) != 0) {
+            throw new IOException(name + " is encrypted");
+        }
+        return entry;
+    }
+
+    /**
+     * The local header repeats the name and may have different extra fields than the central directory, so its lengths give the offset of
+     * the data.
+     */
+    private long dataOffset(Entry entry) throws IOException {
+        var localHeader = map(fc, archive, entry.localHeaderOffset(), ZipRecords.LOCAL_FILE_HEADER_SIZE);
+        if (localHeader.getInt(0) != ZipRecords.LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new IOException("The local header of %s at %d is corrupt".formatted(entry.name(), entry.localHeaderOffset()));
+        }
+        return entry.localHeaderOffset() + ZipRecords.LOCAL_FILE_HEADER_SIZE
+                + (localHeader.getShort(26) & 0xFFFF)
+                + (localHeader.getShort(28) & 0xFFFF);
+    }
+
+    private ByteBuffer nameOf(int headerOffset) {
+        return centralDirectory.slice(headerOffset + ZipRecords.CENTRAL_DIRECTORY_HEADER_SIZE,
+                centralDirectory.getShort(headerOffset + 28) & 0xFFFF);
+    }
+
+    private Entry decode(int headerOffset) {
+        var cd = centralDirectory;
+        var versionMadeBy = cd.getShort(headerOffset + 4) & 0xFF00;
+        var flags = cd.getShort(headerOffset + 8) & 0xFFFF;
+        var method = cd.getShort(headerOffset + 10) & 0xFFFF;
+        var dosTime = cd.getInt(headerOffset + 12);
+        var crc = cd.getInt(headerOffset + 16) & ZipRecords.ZIP64_LIMIT;
+        long compressedSize = cd.getInt(headerOffset + 20) & ZipRecords.ZIP64_LIMIT;
+        long size = cd.getInt(headerOffset + 24) & ZipRecords.ZIP64_LIMIT;
+        var nameLength = cd.getShort(headerOffset + 28) & 0xFFFF;
+        var extraLength = cd.getShort(headerOffset + 30) & 0xFFFF;
+        var externalAttributes = cd.getInt(headerOffset + 38);
+        long localHeaderOffset = cd.getInt(headerOffset + 42) & ZipRecords.ZIP64_LIMIT;
+        var name = UTF_8.decode(nameOf(headerOffset)).toString();
+
+        var mtime = -1L;
+        var extra = headerOffset + ZipRecords.CENTRAL_DIRECTORY_HEADER_SIZE + nameLength;
+        var extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            var id = cd.getShort(extra);
+            var length = cd.getShort(extra + 2) & 0xFFFF;
+            var field = extra + 4;
+            extra = field + length;
+            if (id == ZipRecords.ZIP64_EXTRA_ID) {
+                // only the fields which overflow are present, in this order
+                if (size == ZipRecords.ZIP64_LIMIT) {
+                    size = cd.getLong(field);
+                    field += Long.BYTES;
+                }
+                if (compressedSize == ZipRecords.ZIP64_LIMIT) {
+                    compressedSize = cd.getLong(field);
+                    field += Long.BYTES;
+                }
+                if (localHeaderOffset == ZipRecords.ZIP64_LIMIT) {
+                    localHeaderOffset = cd.getLong(field);
+                }
+            } else if (id == ZipRecords.EXTENDED_TIMESTAMP_EXTRA_ID && length >= 5 && (cd.get(field) & 1) != 0) {
+                mtime = (cd.getInt(field + 1) & ZipRecords.ZIP64_LIMIT) * 1000;
+            }
+        }
+
+        return new Entry(name,
+                method,
+                flags,
+                crc,
+                compressedSize,
+                size,
+                localHeaderOffset,
+                mtime >= 0 ? mtime : ZipRecords.fromDosTime(dosTime),
+                versionMadeBy == ZipRecords.VERSION_MADE_BY_UNIX ? externalAttributes >>> 16 : 0);
+    }
+
+    /**
+     * @return a little endian view of {@code size} bytes of the archive at {@code offset}, sliced from the whole mapping when there is one.
+     */
+    private static ByteBuffer map(FileChannel fc, ByteBuffer archive, long offset, int size) throws IOException {
+        if (archive != null) {
+            return archive.slice((int) offset, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return FileMMapPublisher.map(fc, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int hash(ByteBuffer name) {
+        var hash = 0x811c9dc5; // FNV-1a
+        for (int i = name.position(); i < name.limit(); i++) {
+            hash = (hash ^ (name.get(i) & 0xFF)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * An entry as described by its central directory header.
+     *
+     * @param name              the entry's name, directories end with {@code /}.
+     * @param method            the compression method, {@code 0} for stored and {@code 8} for deflated.
+     * @param flags             the general purpose bit flags.
+     * @param crc               the CRC-32 of the uncompressed data.
+     * @param compressedSize    the size of the data in the archive.
+     * @param size              the size of the uncompressed data.
+     * @param localHeaderOffset the position of the entry's local file header in the archive.
+     * @param mtime             the modification time in milliseconds since the epoch.
+     * @param mode              the unix file mode, {@code 0} if the archive wasn't created on unix.
+     */
+    public record Entry(String name,
+                        int method,
+                        int flags,
+                        long crc,
+                        long compressedSize,
+                        long size,
+                        long localHeaderOffset,
+                        long mtime,
+                        int mode) {
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Reads an entry's data a window of the archive at a time, copying stored data and inflating deflated data into the destination
+     * buffer.
+     */
+    private class EntryChannel implements ReadableByteChannel {
+
+        private final Entry entry;
+        private final Inflater inflater;
+        private final CRC32 crc = new CRC32();
+        private final long end;
+        private long position;
+        private ByteBuffer window;
+        private long read;
+        private boolean open = true;
+
+        private EntryChannel(Entry entry, long dataOffset) {
+            this.entry = entry;
+            this.inflater = entry.method() == ZipRecords.METHOD_DEFLATED ? new Inflater(true) : null;
+            this.position = dataOffset;
+            this.end = dataOffset + entry.compressedSize();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (read == entry.size()) {
+                return -1;
+            }
+
+            var start = dst.position();
+            while (dst.hasRemaining() && read < entry.size()) {
+                if (inflater == null ? window == null || !window.hasRemaining() : inflater.needsInput() && position < end) {
+                    if (position >= end) {
+                        throw truncated();
+                    }
+                    var size = (int) Math.min(end - position, INFLATE_WINDOW_SIZE);
+                    window = map(fc, archive, position, size);
+                    position += size;
+                    if (inflater != null) {
+                        inflater.setInput(window);
+                    }
+                }
+
+                var from = dst.position();
+                if (inflater == null) {
+                    var length = (int) Math.min(Math.min(dst.remaining(), window.remaining()), entry.size() - read);
+                    dst.put(dst.position(), window, window.position(), length);
+                    dst.position(from + length);
+                    window.position(window.position() + length);
+                } else {
+                    // the inflater consumes all of its input while it may still hold output, so the entry is only truncated once
+                    // inflating makes no progress without more input
+                    try {
+                        inflater.inflate(dst);
+                    } catch (DataFormatException e) {
+                        throw new IOException(entry.name() + " is corrupt", e);
+                    }
+                    if (dst.position() == from) {
+                        if (inflater.finished() || !inflater.needsInput()) {
+                            throw new IOException("%s is corrupt, expected %d bytes but inflated %d".formatted(entry.name(),
+                                    entry.size(), read));
+                        }
+                        if (position >= end) {
+                            throw truncated();
+                        }
+                    }
+                }
+                crc.update(dst.slice(from, dst.position() - from));
+                read += dst.position() - from;
+            }
+
+            if (read == entry.size() && crc.getValue() != entry.crc()) {
+                throw new IOException("%s is corrupt, CRC-32 %08x doesn't match %08x".formatted(entry.name(), crc.getValue(), entry.crc()));
+            }
+            return dst.position() - start;
+        }
+
+        private IOException truncated() {
+            return new IOException("%s is truncated, expected %d bytes but read %d".formatted(entry.name(), entry.size(), read));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open && inflater != null) {
+                inflater.end();
+            }
+            open = false;
+        }
+    }
+}
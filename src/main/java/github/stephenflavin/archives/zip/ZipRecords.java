@@ -0,0 +1,224 @@
+package github.stephenflavin.archives.zip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Encodes the fixed records of the zip format described in PKWARE's APPNOTE.TXT, all fields are little endian, and holds the signatures
+ * and sizes {@link ZipReader} decodes them with.
+ * <p>
+ * Every entry carries an extended timestamp extra field so the exact modification time survives regardless of time zone, entries of at
+ * least {@link #ZIP64_LIMIT} bytes also carry a Zip64 extended information extra field in their local header, which signals that their
+ * data descriptor holds 8 byte sizes.
+ */
+final class ZipRecords {
+
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    static final int LOCAL_FILE_HEADER_SIZE = 30;
+    static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+    static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    static final short ZIP64_EXTRA_ID = 0x0001;
+    static final short EXTENDED_TIMESTAMP_EXTRA_ID = 0x5455;
+    private static final int EXTENDED_TIMESTAMP_EXTRA_SIZE = 9;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    static final int VERSION_MADE_BY_UNIX = 3 << 8;
+
+    static final int FLAG_ENCRYPTED = 1;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int MS_DOS_DIRECTORY = 0x10;
+
+    private ZipRecords() {
+    }
+
+    /**
+     * The details of an entry needed to write its central directory header once its data has been written.
+     *
+     * @param name              the entry's name, directories end with {@code /}.
+     * @param method            {@link #METHOD_STORED} or {@link #METHOD_DEFLATED}.
+     * @param crc               the CRC-32 of the uncompressed data.
+     * @param compressedSize    the size of the data as written.
+     * @param size              the size of the uncompressed data.
+     * @param localHeaderOffset the position of the entry's local file header in the archive.
+     * @param mtime             the modification time in milliseconds since the epoch.
+     * @param mode              the unix file mode, including the file type bits.
+     * @param directory         whether the entry is a directory.
+     */
+    record CentralEntry(byte[] name, int method, long crc, long compressedSize, long size, long localHeaderOffset, long mtime, int mode,
+                        boolean directory) {
+
+        int centralHeaderSize() {
+            return CENTRAL_DIRECTORY_HEADER_SIZE + name.length + EXTENDED_TIMESTAMP_EXTRA_SIZE + zip64ExtraSize();
+        }
+
+        private int zip64ExtraSize() {
+            var fields = (size >= ZIP64_LIMIT ? 1 : 0) + (compressedSize >= ZIP64_LIMIT ? 1 : 0)
+                    + (localHeaderOffset >= ZIP64_LIMIT ? 1 : 0);
+            return fields == 0 ? 0 : 4 + fields * Long.BYTES;
+        }
+    }
+
+    /**
+     * @param zip64 whether the entry's data descriptor will hold 8 byte sizes.
+     * @return a local file header, directories have no data so their CRC and sizes, all zero, are written in the header while files have
+     * them written in a data descriptor following their data.
+     */
+    static ByteBuffer localFileHeader(byte[] name, int method, long mtime, boolean directory, boolean zip64) {
+        var buffer = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE + name.length + EXTENDED_TIMESTAMP_EXTRA_SIZE + (zip64 ? 20 : 0))
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(LOCAL_FILE_HEADER_SIGNATURE)
+                .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT))
+                .putShort((short) (FLAG_UTF8 | (directory ? 0 : FLAG_DATA_DESCRIPTOR)))
+                .putShort((short) method)
+                .putInt(dosTime(mtime))
+                .putInt(0) // crc
+                .putInt(zip64 ? (int) ZIP64_LIMIT : 0)
+                .putInt(zip64 ? (int) ZIP64_LIMIT : 0)
+                .putShort((short) name.length)
+                .putShort((short) (EXTENDED_TIMESTAMP_EXTRA_SIZE + (zip64 ? 20 : 0)))
+                .put(name);
+        putExtendedTimestamp(buffer, mtime);
+        if (zip64) {
+            // the sizes are in the data descriptor
+            buffer.putShort(ZIP64_EXTRA_ID)
+                    .putShort((short) 16)
+                    .putLong(0)
+                    .putLong(0);
+        }
+        return buffer.flip();
+    }
+
+    static ByteBuffer dataDescriptor(long crc, long compressedSize, long size, boolean zip64) {
+        var buffer = ByteBuffer.allocate(zip64 ? 24 : 16)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(DATA_DESCRIPTOR_SIGNATURE)
+                .putInt((int) crc);
+        if (zip64) {
+            buffer.putLong(compressedSize).putLong(size);
+        } else {
+            buffer.putInt((int) compressedSize).putInt((int) size);
+        }
+        return buffer.flip();
+    }
+
+    static void putCentralDirectoryHeader(ByteBuffer buffer, CentralEntry entry) {
+        var zip64ExtraSize = entry.zip64ExtraSize();
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) (VERSION_MADE_BY_UNIX | VERSION_ZIP64))
+                .putShort((short) (zip64ExtraSize > 0 || entry.size() >= ZIP64_LIMIT ? VERSION_ZIP64 : VERSION_DEFAULT))
+                .putShort((short) (FLAG_UTF8 | (entry.directory() ? 0 : FLAG_DATA_DESCRIPTOR)))
+                .putShort((short) entry.method())
+                .putInt(dosTime(entry.mtime()))
+                .putInt((int) entry.crc())
+                .putInt((int) Math.min(entry.compressedSize(), ZIP64_LIMIT))
+                .putInt((int) Math.min(entry.size(), ZIP64_LIMIT))
+                .putShort((short) entry.name().length)
+                .putShort((short) (EXTENDED_TIMESTAMP_EXTRA_SIZE + zip64ExtraSize))
+                .putShort((short) 0) // comment length
+                .putShort((short) 0) // disk number
+                .putShort((short) 0) // internal attributes
+                .putInt(entry.mode() << 16 | (entry.directory() ? MS_DOS_DIRECTORY : 0))
+                .putInt((int) Math.min(entry.localHeaderOffset(), ZIP64_LIMIT))
+                .put(entry.name());
+        putExtendedTimestamp(buffer, entry.mtime());
+        if (zip64ExtraSize > 0) {
+            buffer.putShort(ZIP64_EXTRA_ID).putShort((short) (zip64ExtraSize - 4));
+            if (entry.size() >= ZIP64_LIMIT) {
+                buffer.putLong(entry.size());
+            }
+            if (entry.compressedSize() >= ZIP64_LIMIT) {
+                buffer.putLong(entry.compressedSize());
+            }
+            if (entry.localHeaderOffset() >= ZIP64_LIMIT) {
+                buffer.putLong(entry.localHeaderOffset());
+            }
+        }
+    }
+
+    /**
+     * @return the records terminating the archive, preceded by the Zip64 end of central directory record and locator when the number of
+     * entries, size or offset of the central directory don't fit the classic record.
+     */
+    static ByteBuffer endOfCentralDirectory(long entries, long centralDirectoryOffset, long centralDirectorySize) {
+        var zip64 = entries >= ZIP64_ENTRY_LIMIT || centralDirectoryOffset >= ZIP64_LIMIT || centralDirectorySize >= ZIP64_LIMIT;
+        var buffer = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE
+                        + (zip64 ? ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE + ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE : 0))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64) {
+            var zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+            buffer.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                    .putLong(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE - 12)
+                    .putShort((short) (VERSION_MADE_BY_UNIX | VERSION_ZIP64))
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0) // this disk
+                    .putInt(0) // disk with the central directory
+                    .putLong(entries)
+                    .putLong(entries)
+                    .putLong(centralDirectorySize)
+                    .putLong(centralDirectoryOffset)
+                    .putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE)
+                    .putInt(0) // disk with the zip64 end of central directory
+                    .putLong(zip64EndOffset)
+                    .putInt(1); // total disks
+        }
+        return buffer.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0) // this disk
+                .putShort((short) 0) // disk with the central directory
+                .putShort((short) Math.min(entries, ZIP64_ENTRY_LIMIT))
+                .putShort((short) Math.min(entries, ZIP64_ENTRY_LIMIT))
+                .putInt((int) Math.min(centralDirectorySize, ZIP64_LIMIT))
+                .putInt((int) Math.min(centralDirectoryOffset, ZIP64_LIMIT))
+                .putShort((short) 0) // comment length
+                .flip();
+    }
+
+    private static void putExtendedTimestamp(ByteBuffer buffer, long mtime) {
+        buffer.putShort(EXTENDED_TIMESTAMP_EXTRA_ID)
+                .putShort((short) (EXTENDED_TIMESTAMP_EXTRA_SIZE - 4))
+                .put((byte) 1) // modification time present
+                .putInt((int) Math.floorDiv(mtime, 1000));
+    }
+
+    /**
+     * @return the MS-DOS date in the high 16 bits and time in the low 16 bits, in the local time zone with 2 second precision.
+     */
+    private static int dosTime(long mtime) {
+        var time = LocalDateTime.ofInstant(Instant.ofEpochMilli(mtime), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 5 | 1) << 16;
+        }
+        var date = (time.getYear() - 1980) << 9 | time.getMonthValue() << 5 | time.getDayOfMonth();
+        return date << 16 | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch of an MS-DOS date and time in the local time zone.
+     */
+    static long fromDosTime(int dosTime) {
+        var date = dosTime >>> 16;
+        var time = LocalDateTime.of(1980 + (date >> 9), Math.max(1, (date >> 5) & 0xF), Math.max(1, date & 0x1F),
+                (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime & 0x1F) << 1);
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,92 @@
+package github.stephenflavin.archives.zip;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+
+import github.stephenflavin.archives.AsyncFileChannelSink;
+
+public class ZipUtility {
+
+    public static CompletableFuture<Path> createZipFile(Path archivePath, List<Path> filesToZip) throws IOException {
+        return createZipFile(archivePath, filesToZip.toArray(Path[]::new));
+    }
+
+    /**
+     * Creates a zip file of stored entries by writing the buffers published by a {@link ZipPublisher} through an
+     * {@link AsynchronousFileChannel}, see {@link AsyncFileChannelSink}.
+     */
+    public static CompletableFuture<Path> createZipFile(Path archivePath, Path... filesToZip) throws IOException {
+        return createZip(archivePath, new ZipPublisher(filesToZip));
+    }
+
+    public static CompletableFuture<Path> createDeflatedZipFile(Path archivePath, List<Path> filesToZip) throws IOException {
+        return createDeflatedZipFile(archivePath, filesToZip.toArray(Path[]::new));
+    }
+
+    /**
+     * Creates a zip file of deflated entries, compressing entries concurrently on a pool with a thread per core, see
+     * {@link ZipPublisher#deflated(Path...)}.
+     */
+    public static CompletableFuture<Path> createDeflatedZipFile(Path archivePath, Path... filesToZip) throws IOException {
+        return createZip(archivePath, ZipPublisher.deflated(filesToZip));
+    }
+
+    /**
+     * Transcodes a tar file into a zip file of stored entries, writing slices of the mapped tar straight to the zip, see
+     * {@link TarToZipTranscoder}.
+     */
+    public static CompletableFuture<Path> transcodeTarToZip(Path tarPath, Path archivePath) throws IOException {
+        return createZip(archivePath, new TarToZipTranscoder(tarPath));
+    }
+
+    private static CompletableFuture<Path> createZip(Path archivePath, Flow.Publisher<ByteBuffer> publisher) throws IOException {
+        var channel = AsynchronousFileChannel.open(archivePath, CREATE, WRITE, TRUNCATE_EXISTING);
+        var sink = new AsyncFileChannelSink(channel, AsyncFileChannelSink.DEFAULT_MAX_IN_FLIGHT);
+        try {
+            publisher.subscribe(sink);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return sink.completion().handle((written, ex) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (ex == null) {
+                    throw new CompletionException(e);
+                }
+                ex.addSuppressed(e);
+            }
+            if (ex != null) {
+                throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+            }
+            return archivePath;
+        });
+    }
+
+    /**
+     * Zips {@code args[1..]} into {@code args[0]}, deflating entries when the {@code deflate} system property is {@code true}.
+     */
+    public static void main(String[] args) throws IOException {
+        var archivePath = Path.of(args[0]);
+        var filesToZip = new Path[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            filesToZip[i - 1] = Path.of(args[i]);
+        }
+        if (Boolean.getBoolean("deflate")) {
+            createDeflatedZipFile(archivePath, filesToZip).join();
+        } else {
+            createZipFile(archivePath, filesToZip).join();
+        }
+    }
+}
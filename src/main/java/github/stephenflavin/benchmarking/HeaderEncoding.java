@@ -0,0 +1,67 @@
+package github.stephenflavin.benchmarking;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import github.stephenflavin.archives.tar.Header;
+
+/**
+ * Compares the allocation rate and time of encoding headers with {@link Header.Encoder} against the setter based {@link Header} builder,
+ * allocation is measured per thread with {@link com.sun.management.ThreadMXBean#getCurrentThreadAllocatedBytes()}.
+ */
+public class HeaderEncoding {
+
+    private static final int OPERATIONS = 1_000_000;
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final ByteBuffer TARGET = ByteBuffer.allocateDirect(512);
+    private static final Header.Encoder ENCODER = new Header.Encoder();
+    private static final String NAME = "some-benchmark-file.dat";
+    private static final String OWNER = "stephen";
+
+    public static void main(String[] args) {
+        System.out.println("encoder: " + Benchmark.test(HeaderEncoding::encode, 1, 3));
+        System.out.println("encoder: " + allocatedBytesPerOperation(HeaderEncoding::encode) + " B/op");
+        System.out.println("builder: " + Benchmark.test(HeaderEncoding::build, 1, 3));
+        System.out.println("builder: " + allocatedBytesPerOperation(HeaderEncoding::build) + " B/op");
+    }
+
+    private static void encode() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            ENCODER.name(NAME)
+                    .mode(0100644)
+                    .uid(1000)
+                    .gid(1000)
+                    .size(i)
+                    .mtime(1_700_000_000L + i)
+                    .typeFlag((byte) '0')
+                    .uname(OWNER)
+                    .gname(OWNER)
+                    .encodeTo(TARGET, 0);
+        }
+    }
+
+    private static void build() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            new Header()
+                    .setFileName(NAME)
+                    .setMode(0100644)
+                    .uid(1000)
+                    .gid(1000)
+                    .size(i)
+                    .mtime(1_700_000_000L + i)
+                    .typeFlag((byte) '0')
+                    .uname(OWNER)
+                    .gname(OWNER)
+                    .build();
+        }
+    }
+
+    private static double allocatedBytesPerOperation(Runnable r) {
+        var before = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+        r.run();
+        var allocated = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes() - before;
+        return allocated / (double) OPERATIONS;
+    }
+}
@@ -0,0 +1,38 @@
+package github.stephenflavin.benchmarking;
+
+import static github.stephenflavin.benchmarking.Benchmark.BENCHMARK_FILES;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import github.stephenflavin.archives.tar.TarUtility;
+
+public class MyAsyncTar {
+
+    private static final Path RESULT_FILE = Path.of("myasynctar-test.tar");
+
+    public static void main(String[] args) {
+        var result = Benchmark.test(MyAsyncTar::createTar,
+                1,
+                3,
+                () -> {
+                    try {
+                        Files.deleteIfExists(RESULT_FILE);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        System.out.println(result);
+        System.exit(0);
+    }
+
+    private static void createTar() {
+        try {
+            TarUtility.createTarFileAsynchronously(RESULT_FILE, BENCHMARK_FILES).join();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
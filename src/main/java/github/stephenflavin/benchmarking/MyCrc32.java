@@ -0,0 +1,68 @@
+package github.stephenflavin.benchmarking;
+
+import static github.stephenflavin.benchmarking.Benchmark.BENCHMARK_FILES;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+
+import github.stephenflavin.archives.FileMMapPublisher;
+import github.stephenflavin.archives.ParallelCrc32;
+
+/**
+ * Compares checksumming the benchmark files with a single {@link CRC32} over their mapped chunks against {@link ParallelCrc32}.
+ */
+public class MyCrc32 {
+
+    public static void main(String[] args) {
+        System.out.println("serial: " + Benchmark.test(() -> checksumAll(MyCrc32::serialChecksum), 1, 3));
+        System.out.println("parallel: " + Benchmark.test(() -> checksumAll(MyCrc32::parallelChecksum), 1, 3));
+        System.exit(0);
+    }
+
+    private static void checksumAll(Checksum checksum) {
+        try {
+            for (Path path : BENCHMARK_FILES) {
+                checksum.apply(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long parallelChecksum(Path path) throws IOException {
+        return ParallelCrc32.checksum(path);
+    }
+
+    private static long serialChecksum(Path path) {
+        var crc = new CRC32();
+        new FileMMapPublisher(path, true).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(FileMMapPublisher.FileChunk chunk) {
+                crc.update(chunk.buffer());
+                chunk.release();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return crc.getValue();
+    }
+
+    private interface Checksum {
+        long apply(Path path) throws IOException;
+    }
+}